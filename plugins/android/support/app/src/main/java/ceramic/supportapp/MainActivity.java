@@ -26,9 +26,11 @@ public class MainActivity extends AppCompatActivity {
         Map<String,Object> params = new HashMap<>();
         final String url = "http://lorempixel.com/1920/1920/abstract/";
         params.put("url", url);
-        Http.download(params, "someFile.jpg", new Support.Func1<String, Void>() {
+        Http.download(params, "someFile.jpg", null, new Support.Func1<Map<String,Object>, Void>() {
             @Override
-            public Void run(String downloadPath) {
+            public Void run(Map<String,Object> result) {
+
+                String downloadPath = (String) result.get("path");
 
                 if (downloadPath != null) {
                     Log.i(TAG, "Downloaded file at path: " + downloadPath);
@@ -3,57 +3,359 @@ package ceramic.support;
 import android.util.Base64;
 import android.util.Log;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import bind.Support.*;
+import ceramic.support.http.HttpBatch;
+import ceramic.support.http.HttpBody;
+import ceramic.support.http.HttpCache;
+import ceramic.support.http.HttpDispatcher;
+import ceramic.support.http.HttpMetrics;
+import ceramic.support.http.HttpPreconnect;
+import ceramic.support.http.HttpProgress;
+import ceramic.support.http.HttpQueue;
 import ceramic.support.http.HttpRequest;
+import ceramic.support.http.HttpResult;
+import ceramic.support.http.HttpThrottle;
 
 public class Http {
 
-    /** Send HTTP request */
-    public static void sendHttpRequest(final Map<String,Object> params, final Func1<Map<String,Object>,Void> done) {
+    /**
+     * Send HTTP request. If provided, `progress` receives upload and download progress events.
+     * Compressed responses (gzip, deflate) are inflated while they are read. With `decompress` param,
+     * bodies that are gzip files themselves (`.gz` assets) are inflated too.
+     * Idempotent requests with a `retry` param (`{maxAttempts, baseDelay, maxDelay, jitter, statuses}`)
+     * are sent again after network errors or retryable statuses, with exponential backoff.
+     * With `maxBytesPerSecond` param, the response is read no faster than that rate (see also `setMaxBytesPerSecond()`).
+     * Responses larger than `maxMemorySize` param (or `setMaxMemorySize()`) are not kept in memory:
+     * result then has a `contentPath` or `binaryContentPath` temporary file that native side reads, then deletes.
+     * Returns the request id, which can be given to `cancel()`.
+     */
+    public static int sendHttpRequest(final Map<String,Object> params, final Func1<Map<String,Object>,Void> progress, final Func1<Map<String,Object>,Void> done) {
 
-        new HttpRequest(params, null, new HttpRequest.Listener() {
+        return new HttpRequest(params, null, new HttpRequest.Listener() {
 
             @Override
-            public void onComplete(final int statusCode, final String statusMessage, final String content, final byte[] binaryContent, final String downloadPath, final List<String> headers) {
+            public void onComplete(final HttpResult response) {
                 Map<String,Object> result = new HashMap<>();
-                result.put("status", statusCode);
-                if (statusCode >= 400) {
-                    result.put("error", statusMessage);
+                result.put("status", response.statusCode);
+                if (response.statusCode >= 400) {
+                    result.put("error", response.statusMessage);
                 }
-                result.put("content", content);
+                result.put("content", response.content);
+                result.put("contentPath", response.contentPath);
 
-                // Binary data needs to be passed as base64 string for now, because Maps are encoded to JSON to be passed to Haxe
-                result.put("binaryContent", binaryContent != null ? Base64.encodeToString(binaryContent, Base64.NO_WRAP) : null);
+                // When binaryToFile param is set, binary data is available from a temporary file that
+                // native side reads (then deletes) itself, which avoids any base64/JSON copy of the payload.
+                // Otherwise, it needs to be passed as base64 string because Maps are encoded to JSON to be passed to Haxe
+                result.put("binaryContent", response.binaryContent != null ? Base64.encodeToString(response.binaryContent, Base64.NO_WRAP) : null);
+                result.put("binaryContentPath", response.binaryContentPath);
 
-                result.put("headers", headers);
+                result.put("headers", response.headers);
+                result.put("cached", response.cached);
+                result.put("timing", response.timing != null ? response.timing.toMap() : null);
+                if (response.cancelled) {
+                    result.put("error", response.statusMessage);
+                    result.put("cancelled", true);
+                }
 
                 done.run(result);
             }
 
-        }).execute();
+        }).setProgressListener(progressListener(progress)).execute().getId();
 
     }
 
-    /** Download file */
-    public static void download(final Map<String,Object> params, String targetPath, final Func1<String,Void> done) {
+    /**
+     * Download file. If provided, `progress` receives download progress events.
+     * Result has a `path` value with the downloaded file path, or `null` if it failed or was cancelled.
+     * With a `digest` param (`sha256:hex`, `md5:hex`, `crc32:hex`...), the file is only moved to its path
+     * if it matches, and result has a `digest` value with the computed one.
+     * With `decompress` param, compressed responses and `.gz` assets are inflated while
+     * they are written, but such downloads can't be resumed or segmented.
+     * With `unzip` param, the response is a zip archive extracted while it downloads: `targetPath` is then
+     * a directory, replaced as a whole once every entry is extracted. Digest, if any, applies to the archive.
+     * With `skipIfUnchanged` param, validators (ETag, Last-Modified) of the downloaded file are kept in an index
+     * and sent with the next download of the same file: if it didn't change, nothing is written and result
+     * has the existing `path` and a `notModified` value set to `true`.
+     * With `maxBytesPerSecond` param, the file is downloaded no faster than that rate.
+     * Returns the request id, which can be given to `cancel()`.
+     */
+    public static int download(final Map<String,Object> params, String targetPath, final Func1<Map<String,Object>,Void> progress, final Func1<Map<String,Object>,Void> done) {
 
-        new HttpRequest(params, targetPath, new HttpRequest.Listener() {
+        return new HttpRequest(params, targetPath, new HttpRequest.Listener() {
 
             @Override
-            public void onComplete(final int statusCode, final String statusMessage, final String content, final byte[] binaryContent, final String downloadPath, final List<String> headers) {
+            public void onComplete(final HttpResult response) {
+
+                if (response.statusCode >= 400) {
+                    Log.e("CERAMIC", response.statusCode + " / " + response.statusMessage);
+                }
 
-                if (statusCode >= 400) {
-                    Log.e("CERAMIC", statusCode + " / " + statusMessage);
+                Map<String,Object> result = new HashMap<>();
+                result.put("status", response.statusCode);
+                result.put("path", response.downloadPath);
+                if (response.digest != null) {
+                    result.put("digest", response.digest);
+                }
+                if (response.notModified) {
+                    result.put("notModified", true);
+                }
+                result.put("timing", response.timing != null ? response.timing.toMap() : null);
+                if (response.downloadPath == null) {
+                    result.put("error", response.statusMessage);
+                }
+                if (response.cancelled) {
+                    result.put("cancelled", true);
                 }
 
-                done.run(downloadPath);
+                done.run(result);
+            }
+
+        }).setProgressListener(progressListener(progress)).execute().getId();
+
+    }
+
+    /**
+     * Download several files as a single operation. `params` has a `files` list of `{url, path, digest, size}`
+     * (`digest` and `size` being optional); other params apply to every file. If provided, `progress` receives
+     * events for the whole batch. `done` is called once, with `succeeded` and `failed` lists of files.
+     * Returns the tag given to every download of the batch, which can be given to `cancelTag()`.
+     */
+    public static String downloadBatch(final Map<String,Object> params, final Func1<Map<String,Object>,Void> progress, final Func1<Map<String,Object>,Void> done) {
+
+        HttpBatch batch = new HttpBatch(params, new HttpBatch.Listener() {
+
+            @Override
+            public void onComplete(HttpBatch batch) {
+
+                List<Map<String,Object>> succeeded = new ArrayList<>();
+                List<Map<String,Object>> failed = new ArrayList<>();
+                boolean cancelled = false;
+
+                for (HttpBatch.Item item : batch.getItems()) {
+                    Map<String,Object> file = new HashMap<>();
+                    file.put("url", item.url);
+                    if (item.succeeded()) {
+                        file.put("path", item.result.downloadPath);
+                        if (item.result.digest != null) {
+                            file.put("digest", item.result.digest);
+                        }
+                        if (item.result.notModified) {
+                            file.put("notModified", true);
+                        }
+                        succeeded.add(file);
+                    }
+                    else {
+                        file.put("path", item.path);
+                        file.put("status", item.result != null ? item.result.statusCode : 0);
+                        file.put("error", item.result != null ? item.result.statusMessage : null);
+                        if (item.result != null && item.result.cancelled) {
+                            file.put("cancelled", true);
+                            cancelled = true;
+                        }
+                        failed.add(file);
+                    }
+                }
+
+                Map<String,Object> result = new HashMap<>();
+                result.put("succeeded", succeeded);
+                result.put("failed", failed);
+                if (cancelled) {
+                    result.put("cancelled", true);
+                }
+
+                done.run(result);
+            }
+
+        });
+
+        if (progress != null) {
+            batch.setProgressListener(new HttpBatch.ProgressListener() {
+
+                @Override
+                public void onProgress(int completedFiles, int totalFiles, long transferred, long total, long bytesPerSecond) {
+                    Map<String,Object> event = new HashMap<>();
+                    event.put("phase", "download");
+                    event.put("completedFiles", completedFiles);
+                    event.put("totalFiles", totalFiles);
+                    event.put("transferred", transferred);
+                    event.put("total", total);
+                    event.put("rate", bytesPerSecond);
+
+                    progress.run(event);
+                }
+
+            });
+        }
+
+        return batch.execute().getTag();
+
+    }
+
+    /**
+     * Add a request (`url`, `method`, `headers`, text `content`) to the persistent queue. It is stored on disk
+     * and sent later with other queued requests, even if the app is restarted meanwhile. Method defaults to `POST`.
+     */
+    public static void enqueue(Map<String,Object> params) {
+
+        HttpQueue.shared().enqueue(params);
+
+    }
+
+    /**
+     * Configure the persistent queue: `batchSize`, `flushInterval` (ms), `maxBackoff` (ms) and `maxSize` (bytes).
+     * Requests left in the queue by a previous run are sent once the queue is configured or used.
+     */
+    public static void configureQueue(Map<String,Object> options) {
+
+        HttpQueue.shared().configure(options);
+
+    }
+
+    /** Send requests of the persistent queue now, like when connectivity is known to be back */
+    public static void flushQueue() {
+
+        HttpQueue.shared().flush();
+
+    }
+
+    /**
+     * Resolve `hosts` (host names or URLs) and open keep-alive connections to them ahead of time, so that
+     * startup requests skip DNS, TCP and TLS setup. Connections are kept warm for `keepAlive` ms (defaults to 60s),
+     * by sending a `HEAD` request again every `interval` ms (defaults to 20s).
+     */
+    public static void preconnect(Map<String,Object> options) {
+
+        List<String> hosts = new ArrayList<>();
+        if (options.get("hosts") != null) {
+            for (Object host : (List<Object>) options.get("hosts")) {
+                hosts.add((String) host);
+            }
+        }
+        long keepAlive = options.get("keepAlive") != null ? ((Number) options.get("keepAlive")).longValue() : HttpPreconnect.DEFAULT_KEEP_ALIVE;
+        long interval = options.get("interval") != null ? ((Number) options.get("interval")).longValue() : -1;
+
+        HttpPreconnect.shared().preconnect(hosts, keepAlive, interval);
+
+    }
+
+    /** Cancel HTTP request or download with the given id. Its callback receives a cancelled result. */
+    public static boolean cancel(int requestId) {
+
+        return HttpDispatcher.shared().cancel(requestId);
+
+    }
+
+    /** Cancel every HTTP request or download that was given this `tag` param. Returns the number of cancelled requests. */
+    public static int cancelTag(String tag) {
+
+        return HttpDispatcher.shared().cancelTag(tag);
+
+    }
+
+    private static HttpProgress.Listener progressListener(final Func1<Map<String,Object>,Void> progress) {
+
+        if (progress == null) return null;
+
+        return new HttpProgress.Listener() {
+
+            @Override
+            public void onProgress(String phase, long transferred, long total, long bytesPerSecond) {
+                Map<String,Object> event = new HashMap<>();
+                event.put("phase", phase);
+                event.put("transferred", transferred);
+                event.put("total", total);
+                event.put("rate", bytesPerSecond);
+
+                progress.run(event);
             }
 
-        }).execute();
+        };
+
+    }
+
+    /** Set the maximum number of HTTP requests running at the same time */
+    public static void setMaxRequests(int maxRequests) {
+
+        HttpDispatcher.shared().setMaxRequests(maxRequests);
+
+    }
+
+    /** Set the maximum number of HTTP requests running at the same time against a single host */
+    public static void setMaxRequestsPerHost(int maxRequestsPerHost) {
+
+        HttpDispatcher.shared().setMaxRequestsPerHost(maxRequestsPerHost);
+
+    }
+
+    /** Set the maximum number of background priority HTTP requests running at the same time while critical ones are pending */
+    public static void setMaxBackgroundRequests(int maxBackgroundRequests) {
+
+        HttpDispatcher.shared().setMaxBackgroundRequests(maxBackgroundRequests);
+
+    }
+
+    /** Set the maximum size in bytes of the HTTP response cache, used by requests with `cache` param set to `true` */
+    public static void setCacheMaxSize(int maxSize) {
+
+        HttpCache.shared().setMaxSize(maxSize);
+
+    }
+
+    /** Remove every response stored in the HTTP cache */
+    public static void clearCache() {
+
+        HttpCache.shared().clear();
+
+    }
+
+    /** Set the largest response body kept in memory, in bytes. Larger responses are written to temporary files. */
+    public static void setMaxMemorySize(int maxMemorySize) {
+
+        HttpBody.setMaxMemorySize(maxMemorySize);
+
+    }
+
+    /** Set the maximum download rate of all requests combined, in bytes per second. 0 (default) for unlimited. */
+    public static void setMaxBytesPerSecond(int bytesPerSecond) {
+
+        HttpThrottle.setMaxBytesPerSecond(bytesPerSecond);
+
+    }
+
+    /**
+     * Set the maximum download rate of `background` priority requests combined, in bytes per second, applied only
+     * while other requests are running, so that background downloads yield to them. 0 (default) to disable.
+     */
+    public static void setBackgroundBytesPerSecond(int bytesPerSecond) {
+
+        HttpThrottle.setBackgroundBytesPerSecond(bytesPerSecond);
+
+    }
+
+    /**
+     * Get HTTP activity stats (queued, running and coalesced requests, cache hits and misses).
+     * `metrics` value has histograms of request timings (see `resetMetrics()`).
+     */
+    public static Map<String,Object> getStats() {
+
+        Map<String,Object> stats = HttpDispatcher.shared().getStats();
+        stats.put("cache", HttpCache.shared().getStats());
+        stats.put("metrics", HttpMetrics.shared().getStats());
+        stats.put("queue", HttpQueue.getSharedStats());
+        stats.put("preconnect", HttpPreconnect.getSharedStats());
+        return stats;
+
+    }
+
+    /** Reset request timing histograms, typically after polling them with `getStats()` */
+    public static void resetMetrics() {
+
+        HttpMetrics.shared().reset();
 
     }
 
@@ -0,0 +1,148 @@
+package ceramic.support;
+
+import android.util.Base64;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bind.Support.*;
+import ceramic.support.http.HttpWebSocket;
+
+public class WebSocket {
+
+    private static final Map<Integer,HttpWebSocket> sWebSockets = new HashMap<>();
+
+    /**
+     * Connect to a WebSocket server at `url` param (`ws://` or `wss://`). Optional params are `headers`
+     * (`[key, value, key, value, ...]`), `protocols`, `timeout` (seconds), `pingInterval` (ms, 0 to disable),
+     * `maxQueuedBytes` (send queue size, bytes) and `maxMessageSize` (bytes).
+     * `events` receives maps with a `type` value:
+     * `open` (with `protocol` and `headers`),
+     * `messages` (with a `messages` list of `{binary, data}`, binary data being base64 encoded) for every batch of
+     * messages received together,
+     * and `close` (with `code`, `reason` and `error`, which is `null` on clean close), always the last one.
+     * Returns the id of the WebSocket, given to other methods.
+     */
+    public static int connect(Map<String,Object> params, final Func1<Map<String,Object>,Void> events) {
+
+        List<String> protocols = null;
+        if (params.get("protocols") != null) {
+            protocols = new ArrayList<>();
+            for (Object protocol : (List<Object>) params.get("protocols")) {
+                protocols.add((String) protocol);
+            }
+        }
+
+        HttpWebSocket webSocket = new HttpWebSocket(
+            (String) params.get("url"), (List<String>) params.get("headers"), protocols, new HttpWebSocket.Listener() {
+
+            @Override
+            public void onOpen(HttpWebSocket webSocket, List<String> headers) {
+                Map<String,Object> event = new HashMap<>();
+                event.put("type", "open");
+                event.put("protocol", webSocket.getProtocol());
+                event.put("headers", headers);
+
+                events.run(event);
+            }
+
+            @Override
+            public void onMessages(HttpWebSocket webSocket, List<HttpWebSocket.Message> messages) {
+                // A single event (and a single hop to native thread) for the whole batch
+                List<Map<String,Object>> items = new ArrayList<>(messages.size());
+                for (HttpWebSocket.Message message : messages) {
+                    Map<String,Object> item = new HashMap<>();
+                    item.put("binary", message.isBinary());
+                    item.put("data", message.isBinary() ? Base64.encodeToString(message.data, Base64.NO_WRAP) : message.text);
+                    items.add(item);
+                }
+
+                Map<String,Object> event = new HashMap<>();
+                event.put("type", "messages");
+                event.put("messages", items);
+
+                events.run(event);
+            }
+
+            @Override
+            public void onClose(HttpWebSocket webSocket, int code, String reason, String error) {
+                synchronized (sWebSockets) {
+                    sWebSockets.remove(webSocket.getId());
+                }
+
+                Map<String,Object> event = new HashMap<>();
+                event.put("type", "close");
+                event.put("code", code);
+                event.put("reason", reason);
+                event.put("error", error);
+
+                events.run(event);
+            }
+
+        });
+
+        if (params.get("timeout") != null) {
+            webSocket.setTimeout(((Number) params.get("timeout")).intValue() * 1000);
+        }
+        if (params.get("pingInterval") != null) {
+            webSocket.setPingInterval(((Number) params.get("pingInterval")).longValue());
+        }
+        if (params.get("maxQueuedBytes") != null) {
+            webSocket.setMaxQueuedBytes(((Number) params.get("maxQueuedBytes")).longValue());
+        }
+        if (params.get("maxMessageSize") != null) {
+            webSocket.setMaxMessageSize(((Number) params.get("maxMessageSize")).intValue());
+        }
+
+        synchronized (sWebSockets) {
+            sWebSockets.put(webSocket.getId(), webSocket);
+        }
+        return webSocket.connect().getId();
+
+    }
+
+    /** Send a text message. Returns `false` if the WebSocket is closing or if its send queue is full. */
+    public static boolean sendText(int id, String text) {
+
+        HttpWebSocket webSocket = get(id);
+        return webSocket != null && webSocket.sendText(text);
+
+    }
+
+    /** Send a binary message, given as a base64 string. Returns `false` if the WebSocket is closing or if its send queue is full. */
+    public static boolean sendBinary(int id, String data) {
+
+        HttpWebSocket webSocket = get(id);
+        return webSocket != null && webSocket.sendBinary(Base64.decode(data, Base64.NO_WRAP));
+
+    }
+
+    /** Get the number of bytes waiting to be sent, to pace messages before the send queue is full */
+    public static int getBufferedAmount(int id) {
+
+        HttpWebSocket webSocket = get(id);
+        return webSocket != null ? (int) webSocket.getQueuedBytes() : 0;
+
+    }
+
+    /** Close the WebSocket once queued messages are sent. `events` then receives a `close` event. */
+    public static void close(int id, int code, String reason) {
+
+        HttpWebSocket webSocket = get(id);
+        if (webSocket != null) {
+            webSocket.close(code, reason);
+        }
+
+    }
+
+    private static HttpWebSocket get(int id) {
+
+        synchronized (sWebSockets) {
+            return sWebSockets.get(id);
+        }
+
+    }
+
+}
@@ -0,0 +1,212 @@
+package ceramic.support.http;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Downloads a list of files as a single operation. Each file is a regular download
+ * scheduled by HttpDispatcher, but progress is reported for the whole batch and
+ * the listener is called only once, when every file completed or failed.
+ */
+public class HttpBatch {
+
+    public interface Listener {
+        void onComplete(HttpBatch batch);
+    }
+
+    public interface ProgressListener {
+        void onProgress(int completedFiles, int totalFiles, long transferred, long total, long bytesPerSecond);
+    }
+
+    /** A file of the batch and the result of its download */
+    public static class Item {
+
+        public String url;
+
+        public String path;
+
+        /** Expected digest, like the `digest` param of a single download */
+        public String digest;
+
+        /** Expected size in bytes, if given, used to compute total progress before the download starts */
+        public long size = -1;
+
+        public HttpResult result;
+
+        /** `true` if the file was downloaded (and matched its digest, if any) */
+        public boolean succeeded() {
+            return result != null && result.downloadPath != null;
+        }
+
+    }
+
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+
+    private final String mTag;
+    private final Map<String,Object> mParams;
+    private final List<Item> mItems = new ArrayList<>();
+    private final Listener mListener;
+    private ProgressListener mProgressListener = null;
+
+    private int mCompleted = 0;
+    private long[] mTransferred;
+    private long[] mTotals;
+    private HttpProgress mProgress = null;
+
+    /**
+     * @param params  `files` value is a list of `{url, path, digest, size}` maps. Any other
+     *                value (`tag`, `priority`, `headers`, `retry`...) applies to every file.
+     */
+    public HttpBatch(Map<String,Object> params, Listener listener) {
+
+        mParams = new HashMap<>(params);
+        mParams.remove("files");
+        // Files are cancelled together with their tag
+        String tag = (String) params.get("tag");
+        mTag = tag != null ? tag : "batch-" + sNextId.getAndIncrement();
+        mParams.put("tag", mTag);
+        mListener = listener;
+
+        List<Object> files = (List<Object>) params.get("files");
+        if (files != null) {
+            for (Object file : files) {
+                Map<String,Object> fileParams = (Map<String,Object>) file;
+                Item item = new Item();
+                item.url = (String) fileParams.get("url");
+                item.path = (String) fileParams.get("path");
+                item.digest = (String) fileParams.get("digest");
+                if (fileParams.get("size") != null) {
+                    item.size = ((Number) fileParams.get("size")).longValue();
+                }
+                mItems.add(item);
+            }
+        }
+
+        mTransferred = new long[mItems.size()];
+        mTotals = new long[mItems.size()];
+        for (int i = 0; i < mItems.size(); i++) {
+            mTotals[i] = mItems.get(i).size;
+        }
+
+    }
+
+    /** Tag given to every download of this batch, which can be used to cancel them all */
+    public String getTag() {
+        return mTag;
+    }
+
+    public List<Item> getItems() {
+        return mItems;
+    }
+
+    /** Get notified of the whole batch progress. Events are sent from a worker thread. */
+    public HttpBatch setProgressListener(ProgressListener progressListener) {
+
+        mProgressListener = progressListener;
+        return this;
+
+    }
+
+    public HttpBatch execute() {
+
+        if (mItems.isEmpty()) {
+            mListener.onComplete(this);
+            return this;
+        }
+
+        if (mProgressListener != null) {
+            long minInterval = HttpProgress.DEFAULT_MIN_INTERVAL;
+            if (mParams.get("progressInterval") != null) {
+                minInterval = ((Number) mParams.get("progressInterval")).longValue();
+            }
+            mProgress = new HttpProgress(new HttpProgress.Listener() {
+                @Override
+                public void onProgress(String phase, long transferred, long total, long bytesPerSecond) {
+                    int completed;
+                    synchronized (HttpBatch.this) {
+                        completed = mCompleted;
+                        total = total();
+                    }
+                    mProgressListener.onProgress(completed, mItems.size(), transferred, total, bytesPerSecond);
+                }
+            }, "download", -1, minInterval, 0);
+        }
+
+        for (int i = 0; i < mItems.size(); i++) {
+            final int index = i;
+            final Item item = mItems.get(i);
+
+            Map<String,Object> params = new HashMap<>(mParams);
+            params.put("url", item.url);
+            if (item.digest != null) {
+                params.put("digest", item.digest);
+            }
+
+            HttpRequest request = new HttpRequest(params, item.path, new HttpRequest.Listener() {
+                @Override
+                public void onComplete(HttpResult result) {
+                    fileComplete(index, result);
+                }
+            });
+            if (mProgress != null) {
+                request.setProgressListener(new HttpProgress.Listener() {
+                    @Override
+                    public void onProgress(String phase, long transferred, long total, long bytesPerSecond) {
+                        fileProgress(index, transferred, total);
+                    }
+                });
+            }
+            request.execute();
+        }
+
+        return this;
+
+    }
+
+    private void fileProgress(int index, long transferred, long total) {
+
+        long delta;
+        synchronized (this) {
+            delta = transferred - mTransferred[index];
+            mTransferred[index] = transferred;
+            if (total >= 0) mTotals[index] = total;
+        }
+        if (delta != 0) {
+            // Goes down when a file is retried and starts over
+            mProgress.add(delta);
+        }
+
+    }
+
+    private void fileComplete(int index, HttpResult result) {
+
+        boolean done;
+        synchronized (this) {
+            mItems.get(index).result = result;
+            mCompleted++;
+            done = mCompleted == mItems.size();
+        }
+
+        if (done) {
+            if (mProgress != null) mProgress.finish();
+            mListener.onComplete(this);
+        }
+
+    }
+
+    /** Sum of file sizes, or -1 as long as one of them is unknown */
+    private long total() {
+
+        long total = 0;
+        for (long fileTotal : mTotals) {
+            if (fileTotal < 0) return -1;
+            total += fileTotal;
+        }
+        return total;
+
+    }
+
+}
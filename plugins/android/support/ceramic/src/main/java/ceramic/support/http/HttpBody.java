@@ -0,0 +1,133 @@
+package ceramic.support.http;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Response body read fully in memory. `data` can be larger than `length`
+ * so that no extra copy is needed when the final size wasn't known upfront.
+ * Bodies larger than the in-memory ceiling are written to a file instead.
+ */
+public class HttpBody {
+
+    private static volatile long sMaxMemorySize = Math.max(4 * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+
+    /** Largest body kept in memory, in bytes. Defaults to 1/8 of the max heap size. */
+    public static long getMaxMemorySize() {
+        return sMaxMemorySize;
+    }
+
+    public static void setMaxMemorySize(long maxMemorySize) {
+        sMaxMemorySize = maxMemorySize;
+    }
+
+    public byte[] data;
+
+    public int length;
+
+    /** File holding the body if it was too large to be kept in memory. `data` is `null` in that case. */
+    public File file;
+
+    /**
+     * Read the whole stream, then close it.
+     * @param contentLength  expected byte count from `Content-Length`, or -1 if unknown.
+     *                       When correct, the body is read into an array of that exact size.
+     */
+    public static HttpBody read(InputStream is, long contentLength) throws IOException {
+
+        return read(is, contentLength, Integer.MAX_VALUE - 8, null);
+
+    }
+
+    /**
+     * Read the whole stream, then close it. If it is larger than `maxMemorySize`,
+     * it is streamed to a temporary file in `spillDirectory` instead.
+     * @param contentLength  expected byte count from `Content-Length`, or -1 if unknown.
+     */
+    public static HttpBody read(InputStream is, long contentLength, long maxMemorySize, File spillDirectory) throws IOException {
+
+        maxMemorySize = Math.min(maxMemorySize, Integer.MAX_VALUE - 8);
+
+        HttpBody body = new HttpBody();
+        try {
+            if (contentLength > maxMemorySize) {
+                // Known to be too large, don't even start in memory
+                body.spill(is, null, 0, spillDirectory);
+                return body;
+            }
+
+            byte[] data = new byte[contentLength >= 0 ? (int) contentLength : (int) Math.min(16384, maxMemorySize)];
+            int length = 0;
+            while (true) {
+                if (length == data.length) {
+                    // Check end of stream before growing, which is expected when content length was right
+                    int next = is.read();
+                    if (next == -1) break;
+                    if (length >= maxMemorySize) {
+                        data = Arrays.copyOf(data, length + 1);
+                        data[length++] = (byte) next;
+                        body.spill(is, data, length, spillDirectory);
+                        return body;
+                    }
+                    data = Arrays.copyOf(data, (int) Math.min(maxMemorySize, Math.max(16384, data.length * 2L)));
+                    data[length++] = (byte) next;
+                }
+                int nRead = is.read(data, length, data.length - length);
+                if (nRead == -1) break;
+                length += nRead;
+            }
+            body.data = data;
+            body.length = length;
+        }
+        finally {
+            is.close();
+        }
+        return body;
+
+    }
+
+    /** Write bytes already read, then the rest of the stream, to a temporary file */
+    private void spill(InputStream is, byte[] head, int headLength, File spillDirectory) throws IOException {
+
+        if (spillDirectory == null) {
+            throw new IOException("Response body is larger than the in-memory limit");
+        }
+
+        File spillFile = File.createTempFile("http", ".bin", spillDirectory);
+        FileOutputStream output = new FileOutputStream(spillFile);
+        byte[] buffer = HttpBufferPool.acquire();
+        try {
+            if (head != null) {
+                output.write(head, 0, headLength);
+            }
+            int nRead;
+            while ((nRead = is.read(buffer)) != -1) {
+                output.write(buffer, 0, nRead);
+            }
+        }
+        catch (Throwable e) {
+            output.close();
+            spillFile.delete();
+            throw e;
+        }
+        finally {
+            HttpBufferPool.release(buffer);
+        }
+        output.close();
+
+        file = spillFile;
+        length = -1;
+
+    }
+
+    /** Body as an array of its exact length, copied only if needed */
+    public byte[] toByteArray() {
+
+        return data.length == length ? data : Arrays.copyOf(data, length);
+
+    }
+
+}
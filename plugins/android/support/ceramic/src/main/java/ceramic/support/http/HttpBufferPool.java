@@ -0,0 +1,41 @@
+package ceramic.support.http;
+
+import java.util.ArrayDeque;
+
+/**
+ * Shared pool of I/O buffers used by read and write loops, so that
+ * each request doesn't allocate (and let the GC collect) its own buffers.
+ * The pool is bounded: buffers released when it is full are just dropped.
+ */
+public class HttpBufferPool {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int MAX_POOLED_BUFFERS = 8;
+
+    private static final ArrayDeque<byte[]> sBuffers = new ArrayDeque<>();
+
+    /** Get a buffer of `BUFFER_SIZE` bytes. Must be given back with `release()` once done. */
+    public static byte[] acquire() {
+
+        synchronized (sBuffers) {
+            byte[] buffer = sBuffers.poll();
+            if (buffer != null) return buffer;
+        }
+        return new byte[BUFFER_SIZE];
+
+    }
+
+    public static void release(byte[] buffer) {
+
+        if (buffer == null || buffer.length != BUFFER_SIZE) return;
+
+        synchronized (sBuffers) {
+            if (sBuffers.size() < MAX_POOLED_BUFFERS) {
+                sBuffers.push(buffer);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,528 @@
+package ceramic.support.http;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import bind.Support;
+
+/**
+ * Persistent HTTP response cache, stored in the app cache directory.
+ * Each entry is made of a `.meta` file (status, headers, validators, freshness)
+ * and a `.body` file. Entries are evicted in least recently used order
+ * when the total size goes above the configured maximum.
+ */
+public class HttpCache {
+
+    private static HttpCache sShared = null;
+
+    public static synchronized HttpCache shared() {
+
+        if (sShared == null) {
+            sShared = new HttpCache(new File(Support.getContext().getCacheDir(), "ceramic-http-cache"));
+        }
+        return sShared;
+
+    }
+
+    public static class Entry {
+
+        public String key;
+
+        public int statusCode;
+
+        public String statusMessage;
+
+        public List<String> headers = new ArrayList<>();
+
+        /** `true` if the body was stored from decoded text content */
+        public boolean text;
+
+        public String etag;
+
+        public String lastModified;
+
+        /** Time (ms since epoch) until which this entry can be used without revalidation */
+        public long expiresAt;
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt;
+        }
+
+        public boolean hasValidators() {
+            return etag != null || lastModified != null;
+        }
+
+        /**
+         * Body, opened along with metadata while holding the cache lock: it stays readable
+         * and matches these headers even if the entry is replaced or evicted meanwhile.
+         */
+        public FileInputStream body;
+
+        /** Close body. Must be called if the entry is not used after all. */
+        public void close() {
+
+            if (body != null) {
+                try {
+                    body.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+                body = null;
+            }
+
+        }
+
+    }
+
+    private final File mDirectory;
+
+    private long mMaxSize = 32 * 1024 * 1024;
+
+    /** Body + meta size of each entry, in least recently used order */
+    private LinkedHashMap<String,Long> mEntries = null;
+    private long mSize = 0;
+
+    private int mHits = 0;
+    private int mMisses = 0;
+    private int mRevalidations = 0;
+
+    public HttpCache(File directory) {
+
+        mDirectory = directory;
+
+    }
+
+    public synchronized long getMaxSize() {
+        return mMaxSize;
+    }
+
+    /** Set the maximum size of the cache on disk, in bytes. Exceeding entries are evicted right away. */
+    public synchronized void setMaxSize(long maxSize) {
+
+        mMaxSize = maxSize;
+        if (mEntries != null) {
+            trim();
+        }
+
+    }
+
+    public synchronized Map<String,Object> getStats() {
+
+        Map<String,Object> stats = new HashMap<>();
+        stats.put("hits", mHits);
+        stats.put("misses", mMisses);
+        stats.put("revalidations", mRevalidations);
+        stats.put("size", mEntries != null ? mSize : 0);
+        stats.put("maxSize", mMaxSize);
+        return stats;
+
+    }
+
+    synchronized void countHit() {
+        mHits++;
+    }
+
+    synchronized void countMiss() {
+        mMisses++;
+    }
+
+    /** A stale entry was confirmed with a 304 response */
+    synchronized void countRevalidation() {
+        mHits++;
+        mRevalidations++;
+    }
+
+    public static String keyFor(String method, String url) {
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(((method != null ? method : "GET") + " " + url).getBytes("UTF-8"));
+            StringBuilder result = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                result.append(Character.forDigit((b >> 4) & 0xF, 16));
+                result.append(Character.forDigit(b & 0xF, 16));
+            }
+            return result.toString();
+        } catch (Throwable e) {
+            throw new Error(e);
+        }
+
+    }
+
+    /**
+     * `true` if request headers (`[key, value, key, value, ...]`) make the response specific to
+     * whoever sent it. Entries are only keyed by url, so such responses are neither stored nor looked up.
+     */
+    public static boolean isPrivate(List<String> requestHeaders) {
+
+        if (requestHeaders == null) return false;
+        for (int i = 0; i < requestHeaders.size() - 1; i += 2) {
+            if ("authorization".equalsIgnoreCase(requestHeaders.get(i)) && requestHeaders.get(i + 1) != null) {
+                return true;
+            }
+        }
+        return false;
+
+    }
+
+    /** Get entry metadata, or `null` if nothing is cached for this key */
+    public synchronized Entry get(String key) {
+
+        load();
+
+        if (!mEntries.containsKey(key)) {
+            return null;
+        }
+
+        try {
+            JSONObject json = new JSONObject(new String(readFully(metaFile(key)), "UTF-8"));
+            Entry entry = new Entry();
+            entry.key = key;
+            entry.statusCode = json.getInt("status");
+            entry.statusMessage = json.isNull("statusMessage") ? null : json.getString("statusMessage");
+            entry.text = json.optInt("text") == 1;
+            entry.etag = json.isNull("etag") ? null : json.optString("etag");
+            entry.lastModified = json.isNull("lastModified") ? null : json.optString("lastModified");
+            entry.expiresAt = json.optLong("expiresAt");
+            JSONArray headers = json.getJSONArray("headers");
+            for (int i = 0; i < headers.length(); i++) {
+                entry.headers.add(headers.getString(i));
+            }
+            entry.body = new FileInputStream(bodyFile(key));
+
+            // Mark as recently used
+            mEntries.get(key);
+            metaFile(key).setLastModified(System.currentTimeMillis());
+
+            return entry;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            remove(key);
+            return null;
+        }
+
+    }
+
+    private File bodyFile(String key) {
+
+        return new File(mDirectory, key + ".body");
+
+    }
+
+    private File metaFile(String key) {
+
+        return new File(mDirectory, key + ".meta");
+
+    }
+
+    /**
+     * Store an entry. The body is either given as bytes or as a file that will be copied.
+     * Responses that don't allow caching, or that couldn't ever be reused, are ignored.
+     */
+    public synchronized void put(String key, int statusCode, String statusMessage, List<String> headers, boolean text, byte[] body, File bodySource) {
+
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.statusCode = statusCode;
+        entry.statusMessage = statusMessage;
+        entry.headers = headers;
+        entry.text = text;
+        if (!applyHeaders(entry, headers)) {
+            remove(key);
+            return;
+        }
+        if (!entry.isFresh() && !entry.hasValidators()) {
+            // Would need to be downloaded again anyway
+            remove(key);
+            return;
+        }
+
+        load();
+        remove(key);
+
+        try {
+            if (!mDirectory.exists()) {
+                mDirectory.mkdirs();
+            }
+
+            // Written aside then renamed, so that bodies already opened by readers are left untouched
+            File bodyFile = bodyFile(key);
+            File tmpBodyFile = new File(mDirectory, key + ".tmp");
+            if (bodySource != null) {
+                HttpRequest.copyFile(bodySource, tmpBodyFile);
+            }
+            else {
+                FileOutputStream output = new FileOutputStream(tmpBodyFile);
+                try {
+                    if (body != null) {
+                        output.write(body);
+                    }
+                }
+                finally {
+                    output.close();
+                }
+            }
+            if (!tmpBodyFile.renameTo(bodyFile)) {
+                tmpBodyFile.delete();
+                throw new IOException("Failed to move " + tmpBodyFile + " to " + bodyFile);
+            }
+
+            writeMeta(entry);
+
+            long size = bodyFile.length() + metaFile(key).length();
+            mEntries.put(key, size);
+            mSize += size;
+            trim();
+        } catch (Throwable e) {
+            e.printStackTrace();
+            new File(mDirectory, key + ".tmp").delete();
+            bodyFile(key).delete();
+            metaFile(key).delete();
+        }
+
+    }
+
+    /** Update freshness and validators of an entry after a 304 response */
+    public synchronized void update(Entry entry, List<String> headers) {
+
+        if (!applyHeaders(entry, headers)) {
+            remove(entry.key);
+            return;
+        }
+
+        try {
+            writeMeta(entry);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            remove(entry.key);
+        }
+
+    }
+
+    public synchronized void clear() {
+
+        load();
+        for (String key : new ArrayList<>(mEntries.keySet())) {
+            remove(key);
+        }
+
+    }
+
+    private void writeMeta(Entry entry) throws Exception {
+
+        JSONObject json = new JSONObject();
+        json.put("status", entry.statusCode);
+        json.put("statusMessage", entry.statusMessage);
+        json.put("text", entry.text ? 1 : 0);
+        json.put("etag", entry.etag);
+        json.put("lastModified", entry.lastModified);
+        json.put("expiresAt", entry.expiresAt);
+        JSONArray headers = new JSONArray();
+        for (String header : entry.headers) {
+            headers.put(header);
+        }
+        json.put("headers", headers);
+
+        FileOutputStream output = new FileOutputStream(metaFile(entry.key));
+        output.write(json.toString().getBytes("UTF-8"));
+        output.close();
+
+    }
+
+    /**
+     * Read validators and freshness from response headers.
+     * @return `false` if the response must not be stored
+     */
+    private static boolean applyHeaders(Entry entry, List<String> headers) {
+
+        long maxAge = -1;
+        String expires = null;
+        String date = null;
+        boolean noCache = false;
+
+        for (int i = 0; i < headers.size() - 1; i += 2) {
+            String name = headers.get(i).toLowerCase(Locale.ROOT);
+            String value = headers.get(i + 1);
+            if (value == null) continue;
+            switch (name) {
+                case "cache-control":
+                    for (String directive : value.split(",")) {
+                        directive = directive.trim().toLowerCase(Locale.ROOT);
+                        if (directive.equals("no-store")) {
+                            return false;
+                        }
+                        else if (directive.equals("no-cache")) {
+                            noCache = true;
+                        }
+                        else if (directive.startsWith("max-age=")) {
+                            try {
+                                maxAge = Long.parseLong(directive.substring(8).replace("\"", "").trim());
+                            } catch (NumberFormatException e) {
+                                maxAge = 0;
+                            }
+                        }
+                    }
+                    break;
+                case "vary":
+                    // Entries are only keyed by url: a response that depends on other request headers
+                    // can't be stored. Accept-Encoding is fine: bodies are stored once decoded.
+                    for (String field : value.split(",")) {
+                        field = field.trim();
+                        if (field.length() > 0 && !field.equalsIgnoreCase("accept-encoding")) {
+                            return false;
+                        }
+                    }
+                    break;
+                case "etag":
+                    entry.etag = value;
+                    break;
+                case "last-modified":
+                    entry.lastModified = value;
+                    break;
+                case "expires":
+                    expires = value;
+                    break;
+                case "date":
+                    date = value;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        if (noCache) {
+            entry.expiresAt = 0;
+        }
+        else if (maxAge >= 0) {
+            entry.expiresAt = now + maxAge * 1000;
+        }
+        else if (expires != null) {
+            long expiresTime = parseHttpDate(expires);
+            long dateTime = date != null ? parseHttpDate(date) : -1;
+            if (expiresTime > 0) {
+                // Relative to server clock when possible
+                entry.expiresAt = dateTime > 0 ? now + (expiresTime - dateTime) : expiresTime;
+            }
+            else {
+                entry.expiresAt = 0;
+            }
+        }
+        else {
+            entry.expiresAt = 0;
+        }
+
+        return true;
+
+    }
+
+    static long parseHttpDate(String value) {
+
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
+            return format.parse(value).getTime();
+        } catch (Throwable e) {
+            return -1;
+        }
+
+    }
+
+    private void remove(String key) {
+
+        if (mEntries != null) {
+            Long size = mEntries.remove(key);
+            if (size != null) {
+                mSize -= size;
+            }
+        }
+        bodyFile(key).delete();
+        metaFile(key).delete();
+
+    }
+
+    private void trim() {
+
+        Iterator<Map.Entry<String,Long>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Map.Entry<String,Long> eldest = it.next();
+            it.remove();
+            mSize -= eldest.getValue();
+            bodyFile(eldest.getKey()).delete();
+            metaFile(eldest.getKey()).delete();
+        }
+
+    }
+
+    /** Build LRU index from files on disk, using meta file modification time as last access */
+    private void load() {
+
+        if (mEntries != null) return;
+
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+        mSize = 0;
+
+        File[] files = mDirectory.listFiles();
+        if (files == null) return;
+
+        List<File> metaFiles = new ArrayList<>();
+        for (File file : files) {
+            if (file.getName().endsWith(".meta")) {
+                metaFiles.add(file);
+            }
+            else if (file.getName().endsWith(".tmp")) {
+                // Body that was being written when the app stopped
+                file.delete();
+            }
+        }
+        File[] sorted = metaFiles.toArray(new File[0]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long aTime = a.lastModified();
+                long bTime = b.lastModified();
+                return aTime < bTime ? -1 : (aTime == bTime ? 0 : 1);
+            }
+        });
+
+        for (File metaFile : sorted) {
+            String name = metaFile.getName();
+            String key = name.substring(0, name.length() - 5);
+            File bodyFile = bodyFile(key);
+            if (!bodyFile.exists()) {
+                metaFile.delete();
+                continue;
+            }
+            long size = bodyFile.length() + metaFile.length();
+            mEntries.put(key, size);
+            mSize += size;
+        }
+
+        trim();
+
+    }
+
+    static byte[] readFully(File file) throws IOException {
+
+        return HttpBody.read(new FileInputStream(file), file.length()).toByteArray();
+
+    }
+
+}
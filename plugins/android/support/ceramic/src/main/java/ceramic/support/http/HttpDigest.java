@@ -0,0 +1,148 @@
+package ceramic.support.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Digest of a downloaded file, computed while its bytes are written.
+ * Configured from a `digest` param formatted as `algorithm:hex` (expected value)
+ * or just `algorithm` (only compute it). Supported algorithms: `sha256`, `sha1`, `md5`, `crc32`.
+ */
+public class HttpDigest {
+
+    private final String mAlgorithm;
+
+    private final String mExpected;
+
+    private final MessageDigest mMessageDigest;
+
+    private final CRC32 mCrc32;
+
+    private String mValue = null;
+
+    private HttpDigest(String algorithm, String expected) throws NoSuchAlgorithmException {
+
+        mAlgorithm = algorithm;
+        mExpected = expected;
+        switch (algorithm) {
+            case "crc32":
+                mMessageDigest = null;
+                mCrc32 = new CRC32();
+                break;
+            case "sha256":
+                mMessageDigest = MessageDigest.getInstance("SHA-256");
+                mCrc32 = null;
+                break;
+            case "sha1":
+                mMessageDigest = MessageDigest.getInstance("SHA-1");
+                mCrc32 = null;
+                break;
+            case "md5":
+                mMessageDigest = MessageDigest.getInstance("MD5");
+                mCrc32 = null;
+                break;
+            default:
+                throw new NoSuchAlgorithmException("Unsupported digest algorithm: " + algorithm);
+        }
+
+    }
+
+    /** Create a digest from its param value, or return `null` if there is none */
+    public static HttpDigest parse(String spec) throws NoSuchAlgorithmException {
+
+        if (spec == null || spec.length() == 0) return null;
+
+        String algorithm = spec;
+        String expected = null;
+        int colonIndex = spec.indexOf(':');
+        if (colonIndex != -1) {
+            algorithm = spec.substring(0, colonIndex);
+            expected = spec.substring(colonIndex + 1).trim().toLowerCase(Locale.ROOT);
+            if (expected.length() == 0) expected = null;
+        }
+        algorithm = algorithm.trim().toLowerCase(Locale.ROOT).replace("-", "");
+
+        return new HttpDigest(algorithm, expected);
+
+    }
+
+    public void update(byte[] data, int offset, int length) {
+
+        if (mCrc32 != null) {
+            mCrc32.update(data, offset, length);
+        }
+        else {
+            mMessageDigest.update(data, offset, length);
+        }
+
+    }
+
+    /** Add the bytes already in a file, like the partial file of a resumed download */
+    public void update(File file) throws IOException {
+
+        InputStream input = new FileInputStream(file);
+        byte[] buffer = HttpBufferPool.acquire();
+        try {
+            int nRead;
+            while ((nRead = input.read(buffer)) != -1) {
+                update(buffer, 0, nRead);
+            }
+        }
+        finally {
+            HttpBufferPool.release(buffer);
+            input.close();
+        }
+
+    }
+
+    /** Computed value as lowercase hex. No more bytes can be added once called. */
+    public String value() {
+
+        if (mValue == null) {
+            if (mCrc32 != null) {
+                mValue = String.format(Locale.ROOT, "%08x", mCrc32.getValue());
+            }
+            else {
+                byte[] hash = mMessageDigest.digest();
+                StringBuilder result = new StringBuilder(hash.length * 2);
+                for (byte b : hash) {
+                    result.append(Character.forDigit((b >> 4) & 0xF, 16));
+                    result.append(Character.forDigit(b & 0xF, 16));
+                }
+                mValue = result.toString();
+            }
+        }
+        return mValue;
+
+    }
+
+    /** `true` if no value was expected, or if it matches the computed one */
+    public boolean matches() {
+
+        return mExpected == null || mExpected.equals(value());
+
+    }
+
+    public String getExpected() {
+        return mExpected;
+    }
+
+    public String getAlgorithm() {
+        return mAlgorithm;
+    }
+
+    /** Computed value formatted like the param: `algorithm:hex` */
+    @Override
+    public String toString() {
+
+        return mAlgorithm + ":" + value();
+
+    }
+
+}
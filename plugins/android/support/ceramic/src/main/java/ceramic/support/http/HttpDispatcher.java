@@ -0,0 +1,502 @@
+package ceramic.support.http;
+
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules HTTP requests on a bounded set of worker threads.
+ * Requests that can't run right away (global or per-host limit reached)
+ * wait in a FIFO queue per priority class and are started as soon as a slot
+ * is released, higher priority classes first. Running requests are never
+ * interrupted, but background requests are capped while critical ones are pending.
+ * Identical idempotent requests already in flight are merged: only one
+ * of them hits the network and all of them get its result.
+ * Requests to retry are queued again by a timer once their delay elapsed.
+ */
+public class HttpDispatcher {
+
+    private static HttpDispatcher sShared = null;
+
+    public static synchronized HttpDispatcher shared() {
+
+        if (sShared == null) {
+            sShared = new HttpDispatcher();
+        }
+        return sShared;
+
+    }
+
+    public static final int PRIORITY_CRITICAL = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private int mMaxRequests = 8;
+    private int mMaxRequestsPerHost = 4;
+    private int mMaxBackgroundRequests = 1;
+
+    /** Queued requests, one FIFO queue per priority */
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<HttpRequest>[] mQueued = new ArrayDeque[] {
+        new ArrayDeque<HttpRequest>(),
+        new ArrayDeque<HttpRequest>(),
+        new ArrayDeque<HttpRequest>()
+    };
+    private final List<HttpRequest> mRunning = new ArrayList<>();
+    private final int[] mRunningPerPriority = new int[3];
+    private final Map<String,Integer> mRunningPerHost = new HashMap<>();
+    /** Connections opened by running requests besides their own (download segments) */
+    private int mExtraSlots = 0;
+
+    /** Queued or running requests that identical requests can be merged into, by coalescing key */
+    private final Map<String,HttpRequest> mInFlight = new HashMap<>();
+    private int mCoalescedCount = 0;
+
+    /** Every request that didn't complete yet, including merged ones, by id */
+    private final Map<Integer,HttpRequest> mActive = new HashMap<>();
+
+    /** Requests waiting for their next attempt */
+    private int mRetryingCount = 0;
+
+    private ExecutorService mExecutor = null;
+
+    private ScheduledExecutorService mScheduler = null;
+
+    public synchronized int getMaxRequests() {
+        return mMaxRequests;
+    }
+
+    /** Set the maximum number of requests running at the same time. */
+    public void setMaxRequests(int maxRequests) {
+
+        if (maxRequests < 1) {
+            throw new IllegalArgumentException("maxRequests < 1: " + maxRequests);
+        }
+        synchronized (this) {
+            mMaxRequests = maxRequests;
+        }
+        promote();
+
+    }
+
+    public synchronized int getMaxRequestsPerHost() {
+        return mMaxRequestsPerHost;
+    }
+
+    /** Set the maximum number of requests running at the same time against a single host. */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+
+        if (maxRequestsPerHost < 1) {
+            throw new IllegalArgumentException("maxRequestsPerHost < 1: " + maxRequestsPerHost);
+        }
+        synchronized (this) {
+            mMaxRequestsPerHost = maxRequestsPerHost;
+        }
+        promote();
+
+    }
+
+    public synchronized int getMaxBackgroundRequests() {
+        return mMaxBackgroundRequests;
+    }
+
+    /** Set the maximum number of background requests running at the same time while critical requests are pending. */
+    public void setMaxBackgroundRequests(int maxBackgroundRequests) {
+
+        if (maxBackgroundRequests < 0) {
+            throw new IllegalArgumentException("maxBackgroundRequests < 0: " + maxBackgroundRequests);
+        }
+        synchronized (this) {
+            mMaxBackgroundRequests = maxBackgroundRequests;
+        }
+        promote();
+
+    }
+
+    /** Number of requests waiting for a free slot. */
+    public synchronized int getQueuedCount() {
+        return mQueued[PRIORITY_CRITICAL].size() + mQueued[PRIORITY_NORMAL].size() + mQueued[PRIORITY_BACKGROUND].size();
+    }
+
+    /** Number of requests currently running. */
+    public synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    /** `true` if normal or critical priority requests are running, which background ones should yield to. */
+    public synchronized boolean isForegroundActive() {
+        return mRunningPerPriority[PRIORITY_CRITICAL] > 0 || mRunningPerPriority[PRIORITY_NORMAL] > 0;
+    }
+
+    /** Snapshot of the dispatcher activity, suitable to be sent to native. */
+    public synchronized Map<String,Object> getStats() {
+
+        Map<String,Object> stats = new HashMap<>();
+        stats.put("queued", getQueuedCount());
+        stats.put("running", mRunning.size());
+        stats.put("extraConnections", mExtraSlots);
+        stats.put("queuedCritical", mQueued[PRIORITY_CRITICAL].size());
+        stats.put("queuedBackground", mQueued[PRIORITY_BACKGROUND].size());
+        stats.put("runningCritical", mRunningPerPriority[PRIORITY_CRITICAL]);
+        stats.put("runningBackground", mRunningPerPriority[PRIORITY_BACKGROUND]);
+        stats.put("maxRequests", mMaxRequests);
+        stats.put("maxRequestsPerHost", mMaxRequestsPerHost);
+        stats.put("maxBackgroundRequests", mMaxBackgroundRequests);
+        stats.put("coalesced", mCoalescedCount);
+        stats.put("retrying", mRetryingCount);
+        return stats;
+
+    }
+
+    synchronized ExecutorService executor() {
+
+        if (mExecutor == null) {
+            // Thread count is bounded by the dispatcher itself, not by the executor
+            mExecutor = new ThreadPoolExecutor(
+                0, Integer.MAX_VALUE,
+                60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(),
+                new WorkerThreadFactory("CeramicHttp-")
+            );
+        }
+        return mExecutor;
+
+    }
+
+    /** Single thread used to wake up delayed requests, it doesn't run them */
+    private synchronized ScheduledExecutorService scheduler() {
+
+        if (mScheduler == null) {
+            mScheduler = new ScheduledThreadPoolExecutor(1, new WorkerThreadFactory("CeramicHttpScheduler-"));
+        }
+        return mScheduler;
+
+    }
+
+    void enqueue(HttpRequest request) {
+
+        synchronized (this) {
+            mActive.put(request.getId(), request);
+            String key = request.coalescingKey();
+            if (key != null) {
+                HttpRequest leader = mInFlight.get(key);
+                if (leader != null) {
+                    // Same request already in flight, just wait for its result
+                    leader.addFollower(request);
+                    mCoalescedCount++;
+                    if (request.priority() < leader.priority() && mQueued[leader.priority()].remove(leader)) {
+                        // Leader is still queued, it now needs to run as soon as its most urgent follower
+                        leader.setPriority(request.priority());
+                        mQueued[leader.priority()].add(leader);
+                    }
+                    else {
+                        return;
+                    }
+                }
+                else {
+                    mInFlight.put(key, request);
+                    mQueued[request.priority()].add(request);
+                }
+            }
+            else {
+                mQueued[request.priority()].add(request);
+            }
+        }
+        promote();
+
+    }
+
+    /**
+     * Queue a failed request again once the delay has elapsed. It keeps its id and merged
+     * requests meanwhile, and no worker thread is held while waiting.
+     */
+    void retry(final HttpRequest request, long delay) {
+
+        synchronized (this) {
+            mRetryingCount++;
+        }
+
+        scheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (HttpDispatcher.this) {
+                    mRetryingCount--;
+                    // If cancelled meanwhile, it will complete right away when started
+                    mQueued[request.priority()].add(request);
+                }
+                promote();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+    }
+
+    /**
+     * Stop merging new requests into this one, because its result is being delivered.
+     * @return requests that were merged into it
+     */
+    synchronized List<HttpRequest> takeFollowers(HttpRequest leader) {
+
+        String key = leader.coalescingKey();
+        if (key != null && mInFlight.get(key) == leader) {
+            mInFlight.remove(key);
+        }
+        mActive.remove(leader.getId());
+        List<HttpRequest> followers = leader.takeFollowers();
+        if (followers != null) {
+            for (HttpRequest follower : followers) {
+                mActive.remove(follower.getId());
+            }
+        }
+        return followers;
+
+    }
+
+    /**
+     * Cancel the request with the given id.
+     * @return `false` if there is no such request or if it already completed
+     */
+    public boolean cancel(int id) {
+
+        HttpRequest request;
+        synchronized (this) {
+            request = mActive.get(id);
+        }
+        return request != null && cancel(request);
+
+    }
+
+    /**
+     * Cancel every request that has the given tag.
+     * @return the number of cancelled requests
+     */
+    public int cancelTag(String tag) {
+
+        List<HttpRequest> toCancel = new ArrayList<>();
+        synchronized (this) {
+            for (HttpRequest request : mActive.values()) {
+                if (tag.equals(request.getTag())) {
+                    toCancel.add(request);
+                }
+            }
+        }
+
+        int count = 0;
+        for (HttpRequest request : toCancel) {
+            if (cancel(request)) count++;
+        }
+        return count;
+
+    }
+
+    boolean cancel(HttpRequest request) {
+
+        HttpRequest toAbort = null;
+
+        synchronized (this) {
+            if (mActive.remove(request.getId()) == null) {
+                // Already completed or cancelled
+                return false;
+            }
+
+            HttpRequest leader = request.leader();
+            if (leader != null) {
+                // Merged into another request, just stop waiting for it
+                leader.removeFollower(request);
+                if (!leader.hasFollowers() && !mActive.containsKey(leader.getId()) && !stop(leader)) {
+                    // Leader was only kept running for its followers
+                    toAbort = leader;
+                }
+            }
+            else if (!request.hasFollowers() && !stop(request)) {
+                toAbort = request;
+            }
+            // Otherwise, let it run for the requests that were merged into it
+        }
+
+        if (toAbort != null) {
+            toAbort.abort();
+        }
+        request.deliverCancelled();
+        return true;
+
+    }
+
+    /**
+     * Stop merging requests into this one and remove it from queue, with lock held.
+     * @return `false` if it is already running and needs to be aborted
+     */
+    private boolean stop(HttpRequest request) {
+
+        String key = request.coalescingKey();
+        if (key != null && mInFlight.get(key) == request) {
+            mInFlight.remove(key);
+        }
+        return mQueued[request.priority()].remove(request);
+
+    }
+
+    void finished(HttpRequest request) {
+
+        synchronized (this) {
+            if (mRunning.remove(request)) {
+                mRunningPerPriority[request.priority()]--;
+                String host = request.host();
+                Integer count = mRunningPerHost.get(host);
+                if (count == null || count <= 1) {
+                    mRunningPerHost.remove(host);
+                } else {
+                    mRunningPerHost.put(host, count - 1);
+                }
+            }
+        }
+        promote();
+
+    }
+
+    /**
+     * Reserve up to `wanted` additional connections to `host` for a running request, within
+     * global and per-host limits. Reserved slots must be given back with `releaseSlots()`.
+     * @return the number of reserved slots, which can be 0
+     */
+    synchronized int acquireSlots(String host, int wanted) {
+
+        Integer count = mRunningPerHost.get(host);
+        int running = count != null ? count : 0;
+        int slots = Math.max(0, Math.min(wanted, Math.min(
+            mMaxRequests - mRunning.size() - mExtraSlots,
+            mMaxRequestsPerHost - running
+        )));
+        if (slots > 0) {
+            mExtraSlots += slots;
+            mRunningPerHost.put(host, running + slots);
+        }
+        return slots;
+
+    }
+
+    void releaseSlots(String host, int slots) {
+
+        if (slots <= 0) return;
+
+        synchronized (this) {
+            mExtraSlots -= slots;
+            Integer count = mRunningPerHost.get(host);
+            if (count == null || count <= slots) {
+                mRunningPerHost.remove(host);
+            } else {
+                mRunningPerHost.put(host, count - slots);
+            }
+        }
+        promote();
+
+    }
+
+    /** Move queued requests to running state while limits allow it. */
+    private void promote() {
+
+        List<HttpRequest> toStart = null;
+
+        synchronized (this) {
+            for (int priority = PRIORITY_CRITICAL; priority <= PRIORITY_BACKGROUND; priority++) {
+                Iterator<HttpRequest> it = mQueued[priority].iterator();
+                while (it.hasNext() && mRunning.size() + mExtraSlots < mMaxRequests) {
+                    if (priority == PRIORITY_BACKGROUND
+                            && mRunningPerPriority[PRIORITY_BACKGROUND] >= mMaxBackgroundRequests
+                            && (mRunningPerPriority[PRIORITY_CRITICAL] > 0 || !mQueued[PRIORITY_CRITICAL].isEmpty())) {
+                        // Keep bandwidth for critical requests
+                        break;
+                    }
+                    HttpRequest request = it.next();
+                    String host = request.host();
+                    Integer count = mRunningPerHost.get(host);
+                    if (count != null && count >= mMaxRequestsPerHost) {
+                        continue;
+                    }
+                    it.remove();
+                    mRunning.add(request);
+                    mRunningPerPriority[priority]++;
+                    mRunningPerHost.put(host, count == null ? 1 : count + 1);
+                    if (toStart == null) toStart = new ArrayList<>();
+                    toStart.add(request);
+                }
+            }
+        }
+
+        if (toStart != null) {
+            ExecutorService executor = executor();
+            for (final HttpRequest request : toStart) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            request.run();
+                        }
+                        finally {
+                            finished(request);
+                        }
+                    }
+                });
+            }
+        }
+
+    }
+
+    static int parsePriority(Object value) {
+
+        if (value instanceof Number) {
+            return Math.max(PRIORITY_CRITICAL, Math.min(PRIORITY_BACKGROUND, ((Number) value).intValue()));
+        }
+        else if ("critical".equals(value)) {
+            return PRIORITY_CRITICAL;
+        }
+        else if ("background".equals(value)) {
+            return PRIORITY_BACKGROUND;
+        }
+        return PRIORITY_NORMAL;
+
+    }
+
+    static String hostOf(String url) {
+
+        try {
+            URL parsed = new URL(url);
+            String host = parsed.getHost();
+            return host != null ? host.toLowerCase() : "";
+        } catch (Throwable e) {
+            return "";
+        }
+
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        private final String mPrefix;
+
+        WorkerThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, mPrefix + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
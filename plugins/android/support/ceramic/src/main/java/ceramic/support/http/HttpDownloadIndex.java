@@ -0,0 +1,231 @@
+package ceramic.support.http;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import bind.Support;
+
+/**
+ * Validators (ETag, Last-Modified) of files downloaded with `skipIfUnchanged`, with the size
+ * and modification time they had once downloaded. Everything is stored in a single JSON file in
+ * the app files directory. Next download of the same file sends them as conditional headers,
+ * and keeps the file as is if the server answers `304 Not Modified`.
+ */
+public class HttpDownloadIndex {
+
+    private static HttpDownloadIndex sShared = null;
+
+    public static synchronized HttpDownloadIndex shared() {
+
+        if (sShared == null) {
+            sShared = new HttpDownloadIndex(new File(Support.getContext().getFilesDir(), "ceramic-http-downloads.json"));
+        }
+        return sShared;
+
+    }
+
+    /** Delay before writing the index to disk, so that a whole update check is written once */
+    private static final long SAVE_DELAY = 1000;
+
+    public static class Entry {
+
+        public String url;
+
+        public String etag;
+
+        public String lastModified;
+
+        /** Digest of the file as `algorithm:hex`, if it was verified when downloaded */
+        public String digest;
+
+        public long size;
+
+        public long modified;
+
+    }
+
+    private final File mFile;
+    private Map<String,Entry> mEntries = null;
+    private ScheduledExecutorService mExecutor = null;
+    private boolean mSaveScheduled = false;
+
+    public HttpDownloadIndex(File file) {
+
+        mFile = file;
+
+    }
+
+    /**
+     * Get validators of a file previously downloaded from `url`, or `null` if there are none
+     * or if the file was modified, moved or deleted since.
+     */
+    public synchronized Entry get(File target, String url) {
+
+        load();
+
+        String key = target.getAbsolutePath();
+        Entry entry = mEntries.get(key);
+        if (entry == null) return null;
+
+        if (!entry.url.equals(url) || !target.exists()
+                || target.lastModified() != entry.modified
+                || (target.isFile() && target.length() != entry.size)) {
+            mEntries.remove(key);
+            scheduleSave();
+            return null;
+        }
+        return entry;
+
+    }
+
+    /**
+     * Store validators of a file that was just downloaded from `url`, taken from its response headers.
+     * Files without any validator are removed from the index, as they can't be checked.
+     */
+    public synchronized void put(File target, String url, List<String> headers, String digest) {
+
+        load();
+
+        Entry entry = new Entry();
+        entry.url = url;
+        entry.digest = digest;
+        entry.size = target.isFile() ? target.length() : -1;
+        entry.modified = target.lastModified();
+        for (int i = 0; i + 1 < headers.size(); i += 2) {
+            String name = headers.get(i).toLowerCase();
+            if (name.equals("etag")) {
+                entry.etag = headers.get(i + 1);
+            }
+            else if (name.equals("last-modified")) {
+                entry.lastModified = headers.get(i + 1);
+            }
+        }
+
+        if (entry.etag != null || entry.lastModified != null) {
+            mEntries.put(target.getAbsolutePath(), entry);
+        }
+        else {
+            mEntries.remove(target.getAbsolutePath());
+        }
+        scheduleSave();
+
+    }
+
+    public synchronized void remove(File target) {
+
+        load();
+
+        if (mEntries.remove(target.getAbsolutePath()) != null) {
+            scheduleSave();
+        }
+
+    }
+
+    private void load() {
+
+        if (mEntries != null) return;
+        mEntries = new HashMap<>();
+
+        if (!mFile.exists()) return;
+        try {
+            JSONObject json = new JSONObject(new String(HttpCache.readFully(mFile), "UTF-8"));
+            Iterator<String> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                JSONObject item = json.getJSONObject(key);
+                Entry entry = new Entry();
+                entry.url = item.getString("url");
+                entry.etag = item.has("etag") ? item.getString("etag") : null;
+                entry.lastModified = item.has("lastModified") ? item.getString("lastModified") : null;
+                entry.digest = item.has("digest") ? item.getString("digest") : null;
+                entry.size = item.getLong("size");
+                entry.modified = item.getLong("modified");
+                mEntries.put(key, entry);
+            }
+        } catch (Throwable e) {
+            // Corrupted index, files will just be downloaded again
+            e.printStackTrace();
+            mEntries.clear();
+        }
+
+    }
+
+    private void scheduleSave() {
+
+        if (mSaveScheduled) return;
+        mSaveScheduled = true;
+
+        if (mExecutor == null) {
+            mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "CeramicHttpDownloadIndex");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY, TimeUnit.MILLISECONDS);
+
+    }
+
+    /** Write the index to a temporary file first, so that it is never left half written */
+    private void save() {
+
+        byte[] data;
+        synchronized (this) {
+            mSaveScheduled = false;
+            try {
+                JSONObject json = new JSONObject();
+                for (Map.Entry<String,Entry> item : mEntries.entrySet()) {
+                    Entry entry = item.getValue();
+                    JSONObject value = new JSONObject();
+                    value.put("url", entry.url);
+                    if (entry.etag != null) value.put("etag", entry.etag);
+                    if (entry.lastModified != null) value.put("lastModified", entry.lastModified);
+                    if (entry.digest != null) value.put("digest", entry.digest);
+                    value.put("size", entry.size);
+                    value.put("modified", entry.modified);
+                    json.put(item.getKey(), value);
+                }
+                data = json.toString().getBytes("UTF-8");
+            } catch (Throwable e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+
+        try {
+            File tmpFile = new File(mFile.getPath() + ".tmp");
+            FileOutputStream output = new FileOutputStream(tmpFile);
+            try {
+                output.write(data);
+            }
+            finally {
+                output.close();
+            }
+            if (!tmpFile.renameTo(mFile)) {
+                tmpFile.delete();
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+
+    }
+
+}
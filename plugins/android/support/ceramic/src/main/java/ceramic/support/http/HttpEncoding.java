@@ -0,0 +1,120 @@
+package ceramic.support.http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Streaming decompression of response bodies. Bodies are inflated while they are read,
+ * so a compressed response never needs to be held in memory (or on disk) as a whole.
+ */
+public class HttpEncoding {
+
+    /** Value sent in `Accept-Encoding` header when we decode responses ourselves */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private static final int BUFFER_SIZE = 16384;
+
+    /** `true` if the given `Content-Encoding` is one `decode()` would inflate */
+    public static boolean isCompressed(String contentEncoding) {
+
+        if (contentEncoding == null) return false;
+        contentEncoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        return contentEncoding.equals("gzip") || contentEncoding.equals("x-gzip") || contentEncoding.equals("deflate");
+
+    }
+
+    /**
+     * `false` if the response can't have a body (HEAD request, 204 or 304 status, or `Content-Length: 0`),
+     * even if it has a `Content-Encoding` header: there is nothing to decode then.
+     */
+    public static boolean hasBody(HttpURLConnection connection) throws IOException {
+
+        if ("HEAD".equals(connection.getRequestMethod())) return false;
+        int statusCode = connection.getResponseCode();
+        if (statusCode == 204 || statusCode == 304) return false;
+        return !"0".equals(connection.getHeaderField("Content-Length"));
+
+    }
+
+    /**
+     * Wrap the stream to decode the given `Content-Encoding`. The stream is returned as is for identity or unknown encodings,
+     * and for empty bodies, which some servers send with a `Content-Encoding` anyway.
+     */
+    public static InputStream decode(InputStream is, String contentEncoding) throws IOException {
+
+        if (!isCompressed(contentEncoding)) return is;
+
+        PushbackInputStream pushback = new PushbackInputStream(is, 1);
+        int first = pushback.read();
+        if (first == -1) return pushback;
+        pushback.unread(first);
+        is = pushback;
+
+        contentEncoding = contentEncoding.trim().toLowerCase(Locale.ROOT);
+        if (contentEncoding.equals("deflate")) {
+            // Should be zlib wrapped, but some servers send raw deflate data
+            BufferedInputStream buffered = new BufferedInputStream(is, 2);
+            buffered.mark(2);
+            int b0 = buffered.read();
+            int b1 = buffered.read();
+            buffered.reset();
+            boolean zlib = b0 != -1 && b1 != -1 && (b0 & 0x0F) == 8 && ((b0 << 8) | b1) % 31 == 0;
+            return new InflatingInputStream(buffered, new Inflater(!zlib));
+        }
+
+        return new GZIPInputStream(is, BUFFER_SIZE);
+
+    }
+
+    /**
+     * Inflate the stream if its content is itself gzip data (like a `.gz` asset served
+     * without `Content-Encoding`), detected from gzip magic bytes. Returned as is otherwise.
+     */
+    public static InputStream gunzipIfNeeded(InputStream is) throws IOException {
+
+        BufferedInputStream buffered = new BufferedInputStream(is, 2);
+        buffered.mark(2);
+        int b0 = buffered.read();
+        int b1 = buffered.read();
+        buffered.reset();
+        if (b0 == 0x1F && b1 == 0x8B) {
+            return new GZIPInputStream(buffered, BUFFER_SIZE);
+        }
+        return buffered;
+
+    }
+
+    /** Releases its inflater on close, which InflaterInputStream only does with its default one */
+    private static class InflatingInputStream extends InflaterInputStream {
+
+        private final Inflater mInflater;
+
+        InflatingInputStream(InputStream in, Inflater inflater) {
+
+            super(in, inflater, BUFFER_SIZE);
+            mInflater = inflater;
+
+        }
+
+        @Override
+        public void close() throws IOException {
+
+            try {
+                super.close();
+            }
+            finally {
+                mInflater.end();
+            }
+
+        }
+
+    }
+
+}
@@ -0,0 +1,113 @@
+package ceramic.support.http;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aggregated timings of completed requests, as histograms that can be polled
+ * to monitor where time goes (queue, connect, server, transfer) in production.
+ */
+public class HttpMetrics {
+
+    private static HttpMetrics sShared = null;
+
+    public static synchronized HttpMetrics shared() {
+
+        if (sShared == null) {
+            sShared = new HttpMetrics();
+        }
+        return sShared;
+
+    }
+
+    /** Upper bounds (ms) of histogram buckets. A last bucket counts everything above. */
+    public static final long[] BUCKETS = { 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+    private static final String[] PHASES = { "queue", "connect", "ttfb", "transfer", "total" };
+
+    private final Map<String,long[]> mHistograms = new HashMap<>();
+
+    private long mRequests = 0;
+    private long mFailures = 0;
+    private long mBytesIn = 0;
+    private long mBytesOut = 0;
+    private long mRetries = 0;
+
+    private HttpMetrics() {
+
+        reset();
+
+    }
+
+    public synchronized void record(HttpTiming timing, boolean failed) {
+
+        mRequests++;
+        if (failed) mFailures++;
+        mBytesIn += timing.getBytesIn();
+        mBytesOut += timing.getBytesOut();
+        mRetries += timing.getRetries();
+
+        add("queue", timing.queueTime());
+        add("connect", timing.connectTime());
+        add("ttfb", timing.ttfbTime());
+        add("transfer", timing.transferTime());
+        add("total", timing.totalTime());
+
+    }
+
+    public synchronized void reset() {
+
+        mRequests = 0;
+        mFailures = 0;
+        mBytesIn = 0;
+        mBytesOut = 0;
+        mRetries = 0;
+        for (String phase : PHASES) {
+            mHistograms.put(phase, new long[BUCKETS.length + 1]);
+        }
+
+    }
+
+    public synchronized Map<String,Object> getStats() {
+
+        Map<String,Object> stats = new HashMap<>();
+        stats.put("requests", mRequests);
+        stats.put("failures", mFailures);
+        stats.put("bytesIn", mBytesIn);
+        stats.put("bytesOut", mBytesOut);
+        stats.put("retries", mRetries);
+
+        List<Long> buckets = new ArrayList<>();
+        for (long bucket : BUCKETS) {
+            buckets.add(bucket);
+        }
+        stats.put("buckets", buckets);
+
+        for (String phase : PHASES) {
+            List<Long> counts = new ArrayList<>();
+            for (long count : mHistograms.get(phase)) {
+                counts.add(count);
+            }
+            stats.put(phase, counts);
+        }
+        return stats;
+
+    }
+
+    private void add(String phase, double time) {
+
+        // Phase didn't happen for this request
+        if (time < 0) return;
+
+        long[] histogram = mHistograms.get(phase);
+        int i = 0;
+        while (i < BUCKETS.length && time > BUCKETS[i]) {
+            i++;
+        }
+        histogram[i]++;
+
+    }
+
+}
@@ -0,0 +1,198 @@
+package ceramic.support.http;
+
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens connections to known hosts ahead of time, so that the first requests sent to them
+ * don't pay DNS, TCP and TLS setup. Each host is resolved, then a `HEAD` request is sent and its
+ * connection is left in the keep-alive pool of `HttpURLConnection`, where HttpRequest picks it up.
+ * Connections are warmed again periodically until the keep-alive window elapsed, as
+ * servers close idle connections after a while.
+ */
+public class HttpPreconnect {
+
+    private static HttpPreconnect sShared = null;
+
+    public static synchronized HttpPreconnect shared() {
+
+        if (sShared == null) {
+            sShared = new HttpPreconnect();
+        }
+        return sShared;
+
+    }
+
+    public static final long DEFAULT_KEEP_ALIVE = 60000;
+
+    public static final long DEFAULT_INTERVAL = 20000;
+
+    private static final int TIMEOUT = 10000;
+
+    private final ScheduledExecutorService mExecutor;
+
+    /** Warm-up URL of each host, and the time until which it is kept warm */
+    private final Map<String,Long> mDeadlines = new LinkedHashMap<>();
+    private long mInterval = DEFAULT_INTERVAL;
+    private boolean mScheduled = false;
+
+    private int mWarmups = 0;
+    private int mFailures = 0;
+
+    private HttpPreconnect() {
+
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CeramicHttpPreconnect");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    }
+
+    /**
+     * Warm connections to the given hosts now and keep them warm for `keepAlive` ms.
+     * Hosts are either host names (`https` is assumed) or URLs, in which case that URL is used for the warm-up request.
+     * Calling it again for the same hosts extends their window.
+     * @param interval  ms between two warm-ups of the same host, -1 for the default one
+     */
+    public void preconnect(List<String> hosts, long keepAlive, long interval) {
+
+        long deadline = System.currentTimeMillis() + Math.max(0, keepAlive);
+
+        synchronized (this) {
+            if (interval > 0) {
+                mInterval = interval;
+            }
+            for (String host : hosts) {
+                String url = host.contains("://") ? host : "https://" + host + "/";
+                Long current = mDeadlines.get(url);
+                if (current == null || current < deadline) {
+                    mDeadlines.put(url, deadline);
+                }
+            }
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                warmAll();
+            }
+        });
+
+    }
+
+    /** Stats of the shared instance, without creating it (and its timer) if nothing was warmed yet */
+    public static Map<String,Object> getSharedStats() {
+
+        HttpPreconnect preconnect;
+        synchronized (HttpPreconnect.class) {
+            preconnect = sShared;
+        }
+        if (preconnect != null) {
+            return preconnect.getStats();
+        }
+
+        Map<String,Object> stats = new HashMap<>();
+        stats.put("hosts", 0);
+        stats.put("warmups", 0);
+        stats.put("failures", 0);
+        return stats;
+
+    }
+
+    public synchronized Map<String,Object> getStats() {
+
+        Map<String,Object> stats = new HashMap<>();
+        stats.put("hosts", mDeadlines.size());
+        stats.put("warmups", mWarmups);
+        stats.put("failures", mFailures);
+        return stats;
+
+    }
+
+    /** Warm every host still in its window, then schedule next round. Runs on preconnect thread. */
+    private void warmAll() {
+
+        String[] urls;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Long> it = mDeadlines.values().iterator();
+            while (it.hasNext()) {
+                if (it.next() < now) it.remove();
+            }
+            urls = mDeadlines.keySet().toArray(new String[0]);
+        }
+
+        for (String url : urls) {
+            boolean warmed = warm(url);
+            synchronized (this) {
+                if (warmed) mWarmups++;
+                else mFailures++;
+            }
+        }
+
+        synchronized (this) {
+            if (!mDeadlines.isEmpty() && !mScheduled) {
+                mScheduled = true;
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (HttpPreconnect.this) {
+                            mScheduled = false;
+                        }
+                        warmAll();
+                    }
+                }, mInterval, TimeUnit.MILLISECONDS);
+            }
+        }
+
+    }
+
+    /**
+     * Resolve the host, then send a `HEAD` request and release its connection to the keep-alive pool.
+     * Any response status is fine: only the connection matters.
+     */
+    private static boolean warm(String url) {
+
+        HttpURLConnection connection = null;
+        boolean reusable = false;
+        try {
+            URL target = new URL(url);
+            // Fills the system resolver cache for the request that follows, and next ones
+            InetAddress.getAllByName(target.getHost());
+
+            connection = (HttpURLConnection) target.openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            String userAgent = System.getProperty("http.agent");
+            if (userAgent != null) {
+                connection.setRequestProperty("User-Agent", userAgent);
+            }
+            connection.getResponseCode();
+            reusable = true;
+        }
+        catch (Throwable e) {
+            e.printStackTrace();
+        }
+        finally {
+            if (connection != null) HttpRequest.releaseConnection(connection, reusable);
+        }
+        return reusable;
+
+    }
+
+}
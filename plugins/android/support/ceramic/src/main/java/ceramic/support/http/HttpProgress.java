@@ -0,0 +1,125 @@
+package ceramic.support.http;
+
+/**
+ * Tracks transferred bytes of an upload or download and decides when a progress
+ * event is worth sending, so that a fast transfer doesn't flood native side with events.
+ * An event is emitted when both the minimum interval and the minimum byte delta
+ * since last event are reached, and always when the transfer completes.
+ */
+public class HttpProgress {
+
+    public interface Listener {
+        void onProgress(String phase, long transferred, long total, long bytesPerSecond);
+    }
+
+    public static final long DEFAULT_MIN_INTERVAL = 100;
+
+    public static final long DEFAULT_MIN_BYTES = 16 * 1024;
+
+    private final Listener mListener;
+    private final String mPhase;
+    private final long mMinInterval;
+    private final long mMinBytes;
+
+    private long mTotal;
+    private long mTransferred = 0;
+
+    private long mLastEmitTime;
+    private long mLastEmitTransferred = 0;
+    private double mRate = -1;
+
+    /**
+     * @param phase        `upload` or `download`
+     * @param total        expected byte count, or -1 if unknown
+     * @param minInterval  minimum time between two events, in milliseconds
+     * @param minBytes     minimum transferred bytes between two events
+     */
+    public HttpProgress(Listener listener, String phase, long total, long minInterval, long minBytes) {
+
+        mListener = listener;
+        mPhase = phase;
+        mTotal = total;
+        mMinInterval = minInterval;
+        mMinBytes = minBytes;
+        mLastEmitTime = System.nanoTime();
+
+    }
+
+    /** Account bytes that were already transferred before, like the existing part of a resumed download */
+    public synchronized void skip(long bytes) {
+
+        mTransferred += bytes;
+        mLastEmitTransferred = mTransferred;
+
+    }
+
+    /**
+     * Account newly transferred bytes. Thread safe, so it can be shared by concurrent segments.
+     * Negative for bytes that must be transferred again (a retried file of a batch), which is reported with next event.
+     */
+    public void add(long bytes) {
+
+        long transferred;
+        long total;
+        long rate;
+
+        synchronized (this) {
+            mTransferred += bytes;
+            if (bytes < 0) {
+                // Not a transfer, keep it out of rate and minimum byte delta
+                mLastEmitTransferred += bytes;
+                return;
+            }
+
+            long now = System.nanoTime();
+            long elapsed = (now - mLastEmitTime) / 1000000;
+            if (elapsed < mMinInterval || mTransferred - mLastEmitTransferred < mMinBytes) {
+                return;
+            }
+
+            updateRate(now, elapsed);
+            transferred = mTransferred;
+            total = mTotal;
+            rate = (long) mRate;
+        }
+
+        mListener.onProgress(mPhase, transferred, total, rate);
+
+    }
+
+    /** Send a last event, unless the last one already reported every transferred byte */
+    public void finish() {
+
+        long transferred;
+        long total;
+        long rate;
+
+        synchronized (this) {
+            if (mLastEmitTransferred == mTransferred && mRate >= 0) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            updateRate(now, (now - mLastEmitTime) / 1000000);
+            transferred = mTransferred;
+            total = mTotal >= 0 ? mTotal : mTransferred;
+            rate = (long) mRate;
+        }
+
+        mListener.onProgress(mPhase, transferred, total, rate);
+
+    }
+
+    private void updateRate(long now, long elapsed) {
+
+        double rate = elapsed > 0 ? (mTransferred - mLastEmitTransferred) * 1000.0 / elapsed : 0;
+
+        // Smooth rate so that it doesn't jump around between events
+        mRate = mRate < 0 ? rate : mRate * 0.7 + rate * 0.3;
+
+        mLastEmitTime = now;
+        mLastEmitTransferred = mTransferred;
+
+    }
+
+}
@@ -0,0 +1,651 @@
+package ceramic.support.http;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import bind.Support;
+
+/**
+ * Durable queue of fire-and-forget requests (analytics, events...), stored in an
+ * append-only log in the app files directory so that they survive offline periods
+ * and process death. Requests are sent in batches and acknowledged in log order: when some
+ * requests of a batch can't be delivered, they are retried later with exponential backoff. Delivery is at least once:
+ * a request may be sent again if the app is killed before its batch is acknowledged.
+ * Log size is bounded: when full, the oldest requests are dropped.
+ */
+public class HttpQueue {
+
+    private static HttpQueue sShared = null;
+
+    public static synchronized HttpQueue shared() {
+
+        if (sShared == null) {
+            sShared = new HttpQueue(new File(Support.getContext().getFilesDir(), "ceramic-http-queue"));
+        }
+        return sShared;
+
+    }
+
+    /** Tag of requests sent by the queue */
+    public static final String TAG = "ceramic-http-queue";
+
+    public static final int DEFAULT_BATCH_SIZE = 20;
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 30000;
+
+    public static final long DEFAULT_MAX_BACKOFF = 5 * 60000;
+
+    public static final long DEFAULT_MAX_SIZE = 2 * 1024 * 1024;
+
+    /** A request read back from the log, with the log position right after it */
+    private static class Record {
+
+        JSONObject json;
+
+        long end;
+
+    }
+
+    private final File mLogFile;
+    private final File mOffsetFile;
+
+    private final ScheduledExecutorService mExecutor;
+
+    // Configuration, changed from any thread
+    private volatile int mBatchSize = DEFAULT_BATCH_SIZE;
+    private volatile long mFlushInterval = DEFAULT_FLUSH_INTERVAL;
+    private volatile long mMaxBackoff = DEFAULT_MAX_BACKOFF;
+    private volatile long mMaxSize = DEFAULT_MAX_SIZE;
+
+    // State, only changed from queue thread (volatile values are read from other threads)
+    private FileOutputStream mOutput = null;
+    private volatile long mOffset = 0;
+    private volatile long mLength = 0;
+    private volatile int mPending = 0;
+    private boolean mFlushing = false;
+    /** Incremented when requests are dropped, as log positions of a batch being sent are not valid anymore */
+    private int mGeneration = 0;
+    private volatile long mBackoff = 0;
+    private volatile boolean mOffline = false;
+    private ScheduledFuture<?> mScheduledFlush = null;
+
+    // Counters, read from any thread
+    private volatile int mSent = 0;
+    private volatile int mDropped = 0;
+
+    public HttpQueue(File directory) {
+
+        mLogFile = new File(directory, "queue.log");
+        mOffsetFile = new File(directory, "queue.offset");
+
+        mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "CeramicHttpQueue");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+
+    }
+
+    /**
+     * Change queue settings: `batchSize` (requests per batch), `flushInterval` (ms between flushes),
+     * `maxBackoff` (longest delay after failed flushes, in ms) and `maxSize` (bytes on disk).
+     */
+    public void configure(Map<String,Object> options) {
+
+        if (options.get("batchSize") != null) {
+            mBatchSize = Math.max(1, ((Number) options.get("batchSize")).intValue());
+        }
+        if (options.get("flushInterval") != null) {
+            mFlushInterval = Math.max(0, ((Number) options.get("flushInterval")).longValue());
+        }
+        if (options.get("maxBackoff") != null) {
+            mMaxBackoff = Math.max(0, ((Number) options.get("maxBackoff")).longValue());
+        }
+        if (options.get("maxSize") != null) {
+            mMaxSize = Math.max(1024, ((Number) options.get("maxSize")).longValue());
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                scheduleFlush(mBackoff > 0 ? mBackoff : mFlushInterval);
+            }
+        });
+
+    }
+
+    /**
+     * Add a request to the queue. Only `url`, `method`, `headers` and (text) `content` params are kept.
+     * Returns right away, the request is written to disk from the queue thread.
+     */
+    public void enqueue(Map<String,Object> params) {
+
+        final JSONObject json = new JSONObject();
+        try {
+            json.put("url", params.get("url"));
+            json.put("method", params.get("method") != null ? params.get("method") : "POST");
+            if (params.get("headers") != null) {
+                json.put("headers", new JSONArray((List<Object>) params.get("headers")));
+            }
+            if (params.get("content") != null) {
+                json.put("content", params.get("content").toString());
+            }
+            json.put("time", System.currentTimeMillis());
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return;
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                append(json);
+            }
+        });
+
+    }
+
+    /** Send pending requests now, without waiting for the flush interval or the current backoff delay */
+    public void flush() {
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mBackoff = 0;
+                flushNow();
+            }
+        });
+
+    }
+
+    /** Called when any request got a response, meaning network is back if the queue was waiting for it */
+    static void notifyNetworkAvailable() {
+
+        HttpQueue queue;
+        synchronized (HttpQueue.class) {
+            queue = sShared;
+        }
+        if (queue != null && queue.mOffline) {
+            queue.onNetworkAvailable();
+        }
+
+    }
+
+    private void onNetworkAvailable() {
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mOffline && !mFlushing) {
+                    mOffline = false;
+                    mBackoff = 0;
+                    flushNow();
+                }
+            }
+        });
+
+    }
+
+    /**
+     * Stats of the shared queue. If it wasn't used yet, default ones are returned
+     * instead of creating it, which would start its thread and load its log.
+     */
+    public static Map<String,Object> getSharedStats() {
+
+        HttpQueue queue;
+        synchronized (HttpQueue.class) {
+            queue = sShared;
+        }
+        if (queue != null) {
+            return queue.getStats();
+        }
+
+        Map<String,Object> stats = new HashMap<>();
+        stats.put("pending", 0);
+        stats.put("size", 0L);
+        stats.put("backoff", 0L);
+        stats.put("sent", 0);
+        stats.put("dropped", 0);
+        stats.put("maxSize", DEFAULT_MAX_SIZE);
+        stats.put("batchSize", DEFAULT_BATCH_SIZE);
+        stats.put("flushInterval", DEFAULT_FLUSH_INTERVAL);
+        return stats;
+
+    }
+
+    public Map<String,Object> getStats() {
+
+        Map<String,Object> stats = new HashMap<>();
+        stats.put("pending", mPending);
+        stats.put("size", Math.max(0, mLength - mOffset));
+        stats.put("backoff", mBackoff);
+        stats.put("sent", mSent);
+        stats.put("dropped", mDropped);
+        stats.put("maxSize", mMaxSize);
+        stats.put("batchSize", mBatchSize);
+        stats.put("flushInterval", mFlushInterval);
+        return stats;
+
+    }
+
+    private void load() {
+
+        try {
+            File directory = mLogFile.getParentFile();
+            if (!directory.exists()) {
+                directory.mkdirs();
+            }
+
+            // Drop any partially written record at the end of the log (process killed while appending)
+            if (mLogFile.exists()) {
+                RandomAccessFile file = new RandomAccessFile(mLogFile, "rw");
+                try {
+                    long length = file.length();
+                    while (length > 0) {
+                        file.seek(length - 1);
+                        if (file.read() == '\n') break;
+                        length--;
+                    }
+                    file.setLength(length);
+                    mLength = length;
+                }
+                finally {
+                    file.close();
+                }
+            }
+
+            mOffset = readOffset();
+            if (mOffset > mLength) {
+                mOffset = 0;
+            }
+            mPending = countRecords(mOffset);
+            mOutput = new FileOutputStream(mLogFile, true);
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+
+        scheduleFlush(mPending > 0 ? 0 : mFlushInterval);
+
+    }
+
+    private void append(JSONObject json) {
+
+        if (mOutput == null) return;
+
+        try {
+            byte[] record = (json.toString() + "\n").getBytes("UTF-8");
+
+            // Keep disk usage bounded, oldest requests are dropped first
+            if (mLength - mOffset + record.length > mMaxSize) {
+                dropOldest(mLength - mOffset + record.length - mMaxSize);
+            }
+
+            mOutput.write(record);
+            mOutput.flush();
+            mLength += record.length;
+            mPending++;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return;
+        }
+
+        if (mPending >= mBatchSize && !mFlushing && mBackoff == 0) {
+            flushNow();
+        }
+
+    }
+
+    private void dropOldest(long bytes) throws IOException {
+
+        mGeneration++;
+
+        // Drop a bit more than needed, so that it doesn't happen again on every append
+        long target = mOffset + Math.max(bytes, mMaxSize / 10);
+        long offset = mOffset;
+
+        InputStream input = new BufferedInputStream(new FileInputStream(mLogFile), 16384);
+        try {
+            skipFully(input, mOffset);
+            long position = mOffset;
+            int b;
+            while (offset < target && (b = input.read()) != -1) {
+                position++;
+                if (b == '\n') {
+                    offset = position;
+                    mPending--;
+                    mDropped++;
+                }
+            }
+        }
+        finally {
+            input.close();
+        }
+        advance(offset);
+
+    }
+
+    private void scheduleFlush(long delay) {
+
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+        }
+        mScheduledFlush = mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mScheduledFlush = null;
+                flushNow();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+
+    }
+
+    private void flushNow() {
+
+        if (mFlushing) return;
+
+        if (mPending == 0) {
+            scheduleFlush(mFlushInterval);
+            return;
+        }
+
+        final List<Record> batch;
+        try {
+            batch = readRecords(mOffset, mBatchSize);
+        } catch (Throwable e) {
+            e.printStackTrace();
+            scheduleFlush(mFlushInterval);
+            return;
+        }
+        if (batch.isEmpty()) {
+            mPending = 0;
+            scheduleFlush(mFlushInterval);
+            return;
+        }
+
+        mFlushing = true;
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel(false);
+            mScheduledFlush = null;
+        }
+
+        final int generation = mGeneration;
+        final int[] statuses = new int[batch.size()];
+        final int[] remaining = { batch.size() };
+
+        for (int i = 0; i < batch.size(); i++) {
+            final int index = i;
+            JSONObject json = batch.get(i).json;
+            if (json == null) {
+                // Corrupted record, nothing to send
+                statuses[index] = 400;
+                if (--remaining[0] == 0) {
+                    batchComplete(batch, statuses, generation);
+                }
+                continue;
+            }
+
+            Map<String,Object> params = new HashMap<>();
+            params.put("url", json.optString("url"));
+            params.put("method", json.optString("method", "POST"));
+            params.put("tag", TAG);
+            params.put("priority", "background");
+            params.put("coalesce", false);
+            JSONArray headers = json.optJSONArray("headers");
+            if (headers != null) {
+                List<String> headerList = new ArrayList<>();
+                for (int h = 0; h < headers.length(); h++) {
+                    headerList.add(headers.isNull(h) ? null : headers.optString(h));
+                }
+                params.put("headers", headerList);
+            }
+            if (json.has("content")) {
+                params.put("content", json.optString("content"));
+            }
+
+            new HttpRequest(params, null, new HttpRequest.Listener() {
+                @Override
+                public void onComplete(final HttpResult result) {
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            statuses[index] = result.statusCode;
+                            if (--remaining[0] == 0) {
+                                batchComplete(batch, statuses, generation);
+                            }
+                        }
+                    });
+                }
+            }).execute();
+        }
+
+    }
+
+    private void batchComplete(List<Record> batch, int[] statuses, int generation) {
+
+        mFlushing = false;
+        if (generation != mGeneration) {
+            // Log was trimmed while sending, requests still in it will be sent again
+            scheduleFlush(0);
+            return;
+        }
+
+        // Requests are acknowledged in order: stop at the first one that needs to be sent again
+        long offset = mOffset;
+        int failedStatus = -1;
+        for (int i = 0; i < batch.size(); i++) {
+            int status = statuses[i];
+            if (status == 0 || status == 408 || status == 429 || status >= 500) {
+                failedStatus = status;
+                break;
+            }
+            if (status >= 400) {
+                // Rejected by server, sending it again won't help
+                mDropped++;
+            }
+            else {
+                mSent++;
+            }
+            offset = batch.get(i).end;
+            mPending--;
+        }
+
+        try {
+            advance(offset);
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+
+        if (failedStatus != -1) {
+            mOffline = failedStatus == 0;
+            mBackoff = mBackoff == 0 ? Math.min(1000, mMaxBackoff) : Math.min(mBackoff * 2, mMaxBackoff);
+            scheduleFlush(mBackoff);
+        }
+        else {
+            mOffline = false;
+            mBackoff = 0;
+            if (mPending >= mBatchSize) {
+                flushNow();
+            }
+            else {
+                scheduleFlush(mFlushInterval);
+            }
+        }
+
+    }
+
+    /** Mark everything before `offset` as done, and compact the log once mostly made of done requests */
+    private void advance(long offset) throws IOException {
+
+        if (offset == mOffset) return;
+        mOffset = offset;
+
+        if (mOffset == mLength) {
+            // Nothing pending anymore, start over with an empty log
+            mOutput.close();
+            mOutput = new FileOutputStream(mLogFile, false);
+            mOffset = 0;
+            mLength = 0;
+        }
+        else if (mOffset > mLength / 2 && mOffset > 64 * 1024) {
+            compact();
+        }
+
+        writeOffset();
+
+    }
+
+    private void compact() throws IOException {
+
+        File compacted = new File(mLogFile.getPath() + ".tmp");
+        InputStream input = new FileInputStream(mLogFile);
+        FileOutputStream output = new FileOutputStream(compacted);
+        byte[] buffer = HttpBufferPool.acquire();
+        try {
+            skipFully(input, mOffset);
+            int nRead;
+            while ((nRead = input.read(buffer)) != -1) {
+                output.write(buffer, 0, nRead);
+            }
+        }
+        finally {
+            HttpBufferPool.release(buffer);
+            input.close();
+            output.close();
+        }
+
+        mOutput.close();
+        // Offset must be reset before the new log is in place, a stale offset would skip pending requests
+        mOffset = 0;
+        writeOffset();
+        if (!compacted.renameTo(mLogFile)) {
+            throw new IOException("Failed to replace " + mLogFile);
+        }
+        mLength = mLogFile.length();
+        mOutput = new FileOutputStream(mLogFile, true);
+
+    }
+
+    private List<Record> readRecords(long offset, int maxCount) throws IOException {
+
+        List<Record> records = new ArrayList<>();
+        InputStream input = new BufferedInputStream(new FileInputStream(mLogFile), 16384);
+        try {
+            skipFully(input, offset);
+            long position = offset;
+            ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+            int b;
+            while (records.size() < maxCount && position < mLength && (b = input.read()) != -1) {
+                position++;
+                if (b != '\n') {
+                    line.write(b);
+                    continue;
+                }
+                Record record = new Record();
+                try {
+                    record.json = new JSONObject(line.toString("UTF-8"));
+                } catch (Throwable e) {
+                    // Corrupted record, it is acknowledged with the records around it
+                    record.json = null;
+                }
+                record.end = position;
+                records.add(record);
+                line.reset();
+            }
+        }
+        finally {
+            input.close();
+        }
+        return records;
+
+    }
+
+    private int countRecords(long offset) throws IOException {
+
+        if (!mLogFile.exists()) return 0;
+
+        int count = 0;
+        InputStream input = new FileInputStream(mLogFile);
+        byte[] buffer = HttpBufferPool.acquire();
+        try {
+            skipFully(input, offset);
+            int nRead;
+            while ((nRead = input.read(buffer)) != -1) {
+                for (int i = 0; i < nRead; i++) {
+                    if (buffer[i] == '\n') count++;
+                }
+            }
+        }
+        finally {
+            HttpBufferPool.release(buffer);
+            input.close();
+        }
+        return count;
+
+    }
+
+    private static void skipFully(InputStream input, long bytes) throws IOException {
+
+        long skipped = 0;
+        while (skipped < bytes) {
+            long n = input.skip(bytes - skipped);
+            if (n <= 0) throw new IOException("Unexpected end of queue log");
+            skipped += n;
+        }
+
+    }
+
+    private long readOffset() {
+
+        if (!mOffsetFile.exists()) return 0;
+        try {
+            return Long.parseLong(new String(HttpCache.readFully(mOffsetFile), "UTF-8").trim());
+        } catch (Throwable e) {
+            // Unreadable offset, requests may be sent twice but none is lost
+            return 0;
+        }
+
+    }
+
+    private void writeOffset() throws IOException {
+
+        File tmpFile = new File(mOffsetFile.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(tmpFile);
+        try {
+            output.write(String.valueOf(mOffset).getBytes("UTF-8"));
+        }
+        finally {
+            output.close();
+        }
+        tmpFile.renameTo(mOffsetFile);
+
+    }
+
+}
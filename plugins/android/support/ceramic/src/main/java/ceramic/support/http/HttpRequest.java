@@ -1,22 +1,20 @@
 package ceramic.support.http;
 
-import android.os.Handler;
-import android.os.Looper;
-
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bind.Support;
 
@@ -25,30 +23,76 @@ import bind.Support;
  */
 public class HttpRequest {
 
+    /**
+     * Called once, from the worker thread that ran the request (or from the thread that cancelled it).
+     * Nothing is posted to the main looper: receivers hop to the thread they need themselves.
+     */
     public interface Listener {
-        void onComplete(int statusCode, String statusMessage, String content, byte[] binaryContent, String downloadPath, List<String> headers);
+        void onComplete(HttpResult result);
     }
 
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+
+    private final int mId;
+    private final String mTag;
     private final Map<String,Object> mParams;
     private Listener mListener;
 
-    private int mStatusCode;
-    private String mStatusMessage;
-    private String mContent;
-    private byte[] mBinaryContent;
+    private HttpResult mResult;
     private String mTargetDownloadPath;
-    private String mFinalDownloadPath;
-    private List<String> mHeaders;
+    private final String mHost;
+    private int mPriority;
+    private final String mCoalescingKey;
+    private List<HttpRequest> mFollowers = null;
+    private HttpRequest mLeader = null;
+    private volatile boolean mCancelled = false;
+    private volatile HttpURLConnection mConnection = null;
+    private volatile HttpSegmentedDownload mSegmented = null;
+    private HttpProgress.Listener mProgressListener = null;
     private boolean mExecuting = false;
-
-    private static ExecutorService sExecutor = null;
+    private final HttpTiming mTiming = new HttpTiming();
+    private final HttpRetryPolicy mRetryPolicy;
+    /** Rate limit of this request only, if it has a `maxBytesPerSecond` param */
+    private final HttpThrottle mThrottle;
+    private int mAttempts = 0;
 
     public HttpRequest(Map<String,Object> params, String downloadPath, Listener listener) {
 
+        mId = sNextId.getAndIncrement();
+        mTag = (String) params.get("tag");
         mParams = params;
-        mFinalDownloadPath = null;
         mTargetDownloadPath = downloadPath;
         mListener = listener;
+        mHost = HttpDispatcher.hostOf((String) params.get("url"));
+        mPriority = HttpDispatcher.parsePriority(params.get("priority"));
+        mCoalescingKey = computeCoalescingKey(params, downloadPath);
+        mRetryPolicy = HttpRetryPolicy.fromParams(params);
+        mThrottle = params.get("maxBytesPerSecond") != null
+            ? new HttpThrottle(((Number) params.get("maxBytesPerSecond")).longValue())
+            : null;
+    }
+
+    /** Unique identifier of this request, used to cancel it */
+    public int getId() {
+        return mId;
+    }
+
+    /** Tag given with `tag` param, used to cancel several requests at once */
+    public String getTag() {
+        return mTag;
+    }
+
+    /** Cancel this request. Its listener is called right away with a cancelled result. */
+    public void cancel() {
+        HttpDispatcher.shared().cancel(this);
+    }
+
+    /** Get notified of upload and download progress. Events are sent from a worker thread. */
+    public HttpRequest setProgressListener(HttpProgress.Listener progressListener) {
+
+        mProgressListener = progressListener;
+        return this;
+
     }
 
     public HttpRequest execute() {
@@ -56,31 +100,144 @@ public class HttpRequest {
         if (!mExecuting) {
             mExecuting = true;
 
-            if (sExecutor == null) {
-                sExecutor = Executors.newCachedThreadPool();
+            mTiming.queued();
+            HttpDispatcher.shared().enqueue(this);
+        }
+
+        return this;
+
+    }
+
+    /** Host used to apply per-host limits in dispatcher */
+    String host() {
+        return mHost;
+    }
+
+    /** Priority class (`critical`, `normal` or `background` param), used to order requests in dispatcher */
+    int priority() {
+        return mPriority;
+    }
+
+    /** Called by dispatcher, with dispatcher lock held */
+    void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    /** Identical in-flight requests with the same key are merged, `null` if this request can't be merged */
+    String coalescingKey() {
+        return mCoalescingKey;
+    }
+
+    /** Called by dispatcher, with dispatcher lock held */
+    void addFollower(HttpRequest request) {
+        if (mFollowers == null) mFollowers = new ArrayList<>();
+        mFollowers.add(request);
+        request.mLeader = this;
+    }
+
+    /** Called by dispatcher, with dispatcher lock held */
+    void removeFollower(HttpRequest request) {
+        if (mFollowers != null) mFollowers.remove(request);
+        request.mLeader = null;
+    }
+
+    /** Called by dispatcher, with dispatcher lock held */
+    boolean hasFollowers() {
+        return mFollowers != null && !mFollowers.isEmpty();
+    }
+
+    /** Request this one was merged into, if any. Called by dispatcher, with dispatcher lock held */
+    HttpRequest leader() {
+        return mLeader;
+    }
+
+    /** Called by dispatcher, with dispatcher lock held */
+    List<HttpRequest> takeFollowers() {
+        List<HttpRequest> followers = mFollowers;
+        mFollowers = null;
+        return followers;
+    }
+
+    /** Stop any transfer in progress. Called by dispatcher when nobody waits for this request anymore. */
+    void abort() {
+
+        mCancelled = true;
+
+        HttpSegmentedDownload segmented = mSegmented;
+        if (segmented != null) {
+            segmented.abort();
+        }
+
+        HttpURLConnection connection = mConnection;
+        if (connection != null) {
+            try {
+                connection.disconnect();
+            } catch (Throwable e) {
+                // Already disconnected
             }
+        }
 
-            sExecutor.execute(new Runnable() {
-                @Override
-                public void run() {
-                    doInBackground();
-                }
-            });
+    }
+
+    /** Complete listener with a cancelled result. Called by dispatcher. */
+    void deliverCancelled() {
+
+        final HttpResult result = new HttpResult();
+        result.statusMessage = "Cancelled";
+        result.cancelled = true;
+
+        synchronized (HttpDispatcher.shared()) {
+            // No more progress events for this listener
+            mProgressListener = null;
         }
 
-        return this;
+        Listener listener = takeListener();
+        if (listener != null) {
+            listener.onComplete(result);
+        }
+
+    }
+
+    /** Get listener, ensuring it is called only once even if the request completes while being cancelled */
+    private synchronized Listener takeListener() {
+
+        Listener listener = mListener;
+        mListener = null;
+        return listener;
+
+    }
 
+    /** Called by dispatcher from a worker thread */
+    void run() {
+        mAttempts++;
+        mTiming.started();
+        doInBackground();
     }
 
     private void doInBackground() {
 
+        mResult = new HttpResult();
+
+        if (mCancelled) {
+            // Cancelled before it started
+            deliverResult();
+            return;
+        }
+
         try {
             Map<String,Object> params = mParams;
 
-            String tmpDownloadPath = null;
             String downloadPath = mTargetDownloadPath;
             File downloadFile = null;
             File tmpDownloadFile = null;
+            File tmpDownloadInfoFile = null;
+            long resumeFrom = 0;
+            String resumeValidator = null;
+            HttpDigest digest = null;
+            boolean decompress = Boolean.TRUE.equals(params.get("decompress"));
+            boolean unzip = Boolean.TRUE.equals(params.get("unzip"));
+            boolean skipIfUnchanged = Boolean.TRUE.equals(params.get("skipIfUnchanged"));
+            HttpDownloadIndex.Entry unchanged = null;
             if (downloadPath != null) {
                 // Configure download path
                 downloadFile = new File(downloadPath);
@@ -100,21 +257,84 @@ public class HttpRequest {
                     downloadDir.mkdirs();
                 }
 
-                // Overwrite any existing tmp download file
+                // Resume any existing tmp download file if we know how to validate it,
+                // otherwise overwrite it
                 tmpDownloadFile = new File(downloadPath + ".tmpdl");
-                if (tmpDownloadFile.exists()) {
+                tmpDownloadInfoFile = new File(downloadPath + ".tmpdlinfo");
+                if (unzip) {
+                    // Archive is extracted to a tmp directory, which can't be resumed
+                    HttpUnzip.deleteRecursively(tmpDownloadFile);
+                    tmpDownloadInfoFile.delete();
+                }
+                else if (tmpDownloadFile.exists()) {
                     if (tmpDownloadFile.isDirectory()) {
                         throw new Error("Cannot overwrite " + tmpDownloadFile + " directory.");
                     }
-                    tmpDownloadFile.delete();
+                    // Inflated bytes don't match server byte offsets, so decompressed downloads can't be resumed
+                    if (!Boolean.FALSE.equals(params.get("resume")) && !decompress) {
+                        resumeValidator = readDownloadValidator(tmpDownloadInfoFile);
+                    }
+                    if (resumeValidator != null && tmpDownloadFile.length() > 0) {
+                        resumeFrom = tmpDownloadFile.length();
+                    }
+                    else {
+                        resumeValidator = null;
+                        tmpDownloadFile.delete();
+                        tmpDownloadInfoFile.delete();
+                    }
+                }
+
+                // Digest to verify, computed while the file is written
+                digest = HttpDigest.parse((String) params.get("digest"));
+
+                // Validators of the current file, to only download it again if it changed
+                if (skipIfUnchanged && resumeFrom == 0) {
+                    unchanged = HttpDownloadIndex.shared().get(downloadFile, (String) params.get("url"));
+                    if (unchanged != null && digest != null && digest.getExpected() != null
+                            && !(digest.getAlgorithm() + ":" + digest.getExpected()).equals(unchanged.digest)) {
+                        // Current file is not the expected one, whatever the server says
+                        unchanged = null;
+                    }
                 }
             }
 
             URL url = new URL((String) params.get("url"));
             HttpURLConnection connection = null;
+            boolean reusable = false;
+
+            // Download in several concurrent segments if requested and supported by server
+            if (downloadFile != null && resumeFrom == 0 && !decompress && !unzip && unchanged == null
+                    && downloadSegmented(url, tmpDownloadFile, downloadFile, digest)) {
+                if (skipIfUnchanged && mResult.downloadPath != null) rememberDownload(downloadFile);
+                deliverResult();
+                return;
+            }
+
+            // Use a cached response if allowed and still fresh
+            HttpCache cache = null;
+            String cacheKey = null;
+            HttpCache.Entry cacheEntry = null;
+            if (downloadFile == null && Boolean.TRUE.equals(params.get("cache"))
+                    && (params.get("method") == null || "GET".equals(params.get("method")))
+                    && params.get("content") == null && params.get("contentPath") == null
+                    && !HttpCache.isPrivate((List<String>) params.get("headers"))) {
+                cache = HttpCache.shared();
+                cacheKey = HttpCache.keyFor("GET", url.toString());
+                cacheEntry = cache.get(cacheKey);
+                if (cacheEntry != null && cacheEntry.isFresh()) {
+                    cache.countHit();
+                    useCacheEntry(cacheEntry);
+                    deliverResult();
+                    return;
+                }
+            }
 
             try {
                 connection = (HttpURLConnection) url.openConnection();
+                mConnection = connection;
+                if (mCancelled) {
+                    throw new IOException("Cancelled");
+                }
 
                 // Default user agent
                 String userAgent = System.getProperty("http.agent");
@@ -144,6 +364,48 @@ public class HttpRequest {
                     }
                 }
 
+                // Negotiate compression explicitly and inflate the body while reading it, unless
+                // a custom Accept-Encoding was given, in which case the body is returned as received
+                boolean decodeEncoding = false;
+                if (connection.getRequestProperty("Accept-Encoding") == null) {
+                    if (downloadFile == null || decompress) {
+                        connection.setRequestProperty("Accept-Encoding", HttpEncoding.ACCEPT_ENCODING);
+                        decodeEncoding = true;
+                    }
+                    else {
+                        // Downloaded bytes must match server byte offsets to be resumable,
+                        // so don't let the server compress the body
+                        connection.setRequestProperty("Accept-Encoding", "identity");
+                    }
+                }
+
+                if (downloadFile != null) {
+                    if (resumeFrom > 0) {
+                        // Only get the missing bytes, if the remote file didn't change since
+                        connection.setRequestProperty("Range", "bytes=" + resumeFrom + "-");
+                        connection.setRequestProperty("If-Range", resumeValidator);
+                    }
+                    else if (unchanged != null) {
+                        // Only get the file if it changed since it was downloaded
+                        if (unchanged.etag != null && connection.getRequestProperty("If-None-Match") == null) {
+                            connection.setRequestProperty("If-None-Match", unchanged.etag);
+                        }
+                        if (unchanged.lastModified != null && connection.getRequestProperty("If-Modified-Since") == null) {
+                            connection.setRequestProperty("If-Modified-Since", unchanged.lastModified);
+                        }
+                    }
+                }
+
+                if (cacheEntry != null) {
+                    // Stale cached response, only get a new body if it changed
+                    if (cacheEntry.etag != null && connection.getRequestProperty("If-None-Match") == null) {
+                        connection.setRequestProperty("If-None-Match", cacheEntry.etag);
+                    }
+                    if (cacheEntry.lastModified != null && connection.getRequestProperty("If-Modified-Since") == null) {
+                        connection.setRequestProperty("If-Modified-Since", cacheEntry.lastModified);
+                    }
+                }
+
                 // Timeout
                 if (params.get("timeout") != null) {
                     int timeout = (Integer) params.get("timeout");
@@ -152,16 +414,11 @@ public class HttpRequest {
                 }
 
                 // Body
-                if (params.get("content") != null) {
-                    DataOutputStream os = new DataOutputStream(connection.getOutputStream());
-                    os.writeBytes((String) params.get("content"));
-                    os.flush();
-                    os.close();
-                }
+                writeBody(connection);
 
-                mStatusCode = connection.getResponseCode();
-                mStatusMessage = connection.getResponseMessage();
-                mHeaders = new ArrayList<>();
+                mResult.statusCode = connection.getResponseCode();
+                mResult.statusMessage = connection.getResponseMessage();
+                mTiming.headersReceived();
 
                 String contentType = null;
                 // Iterate through all header fields to capture multiple values for same key (e.g., Set-Cookie)
@@ -169,8 +426,8 @@ public class HttpRequest {
                     String name = entry.getKey();
                     if (name != null) {
                         for (String value : entry.getValue()) {
-                            mHeaders.add(name);
-                            mHeaders.add(value);
+                            mResult.headers.add(name);
+                            mResult.headers.add(value);
                             if (contentType == null && name.toLowerCase().equals("content-type")) {
                                 contentType = value.trim();
                             }
@@ -180,123 +437,865 @@ public class HttpRequest {
                 if (contentType == null)
                     contentType = "application/octet-stream";
 
-                if (downloadFile == null) {
+                if (cache != null) {
+                    if (mResult.statusCode == 304 && cacheEntry != null) {
+                        cache.countRevalidation();
+                    }
+                    else {
+                        cache.countMiss();
+                    }
+                }
+
+                if (mResult.statusCode == 304 && cacheEntry != null) {
+                    // Cached response is still valid
+                    cache.update(cacheEntry, mResult.headers);
+                    useCacheEntry(cacheEntry);
+                }
+                else if (mResult.statusCode == 304 && unchanged != null) {
+                    // File didn't change, keep it as is
+                    mResult.notModified = true;
+                    mResult.downloadPath = downloadFile.getAbsolutePath();
+                    if (digest != null) {
+                        mResult.digest = unchanged.digest;
+                    }
+                }
+                else if (downloadFile == null) {
                     if (!isBinaryMimeType(contentType)) {
                         // Text content
                         InputStream is = null;
                         try {
-                            is = mStatusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                            is = mResult.statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
                         } catch (Throwable ee) {
                             ee.printStackTrace();
-                            if (mStatusCode >= 200 && mStatusCode < 300) {
-                                mStatusCode = 0;
+                            if (mResult.statusCode >= 200 && mResult.statusCode < 300) {
+                                mResult.statusCode = 0;
                             }
                         }
 
                         if (is != null) {
-                            BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
-                            String line;
-                            StringBuilder responseOutput = new StringBuilder();
-                            while ((line = br.readLine()) != null) {
-                                responseOutput.append(line);
-                                responseOutput.append('\n');
+                            // Decode the whole body at once, with the charset it was sent with,
+                            // unless it is too large and was written to a file
+                            is = decodeBody(connection, is, decodeEncoding);
+                            Charset charset = HttpText.charsetOf(contentType);
+                            HttpBody body = HttpBody.read(is, bodyLength(connection, decodeEncoding), maxMemorySize(), tmpDir());
+                            if (body.file != null) {
+                                mResult.contentPath = HttpText.toUtf8File(body.file, charset).getAbsolutePath();
+                            }
+                            else {
+                                mResult.content = HttpText.decode(body.data, body.length, charset);
                             }
-                            br.close();
-
-                            mContent = responseOutput.toString();
-                        }
-                        else {
-                            mContent = null;
                         }
-                        mBinaryContent = null;
                     }
                     else {
                         // Binary content
                         InputStream is = null;
                         try {
-                            is = mStatusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                            is = mResult.statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
                         } catch (Throwable ee) {
                             ee.printStackTrace();
-                            if (mStatusCode >= 200 && mStatusCode < 300) {
-                                mStatusCode = 0;
+                            if (mResult.statusCode >= 200 && mResult.statusCode < 300) {
+                                mResult.statusCode = 0;
                             }
                         }
 
                         if (is != null) {
-                            int nRead;
-                            byte[] data = new byte[16384];
-                            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                            while ((nRead = is.read(data, 0, data.length)) != -1) {
-                                buffer.write(data, 0, nRead);
+                            is = decodeBody(connection, is, decodeEncoding);
+                        }
+
+                        if (is != null && Boolean.TRUE.equals(params.get("binaryToFile"))) {
+                            // Stream binary data to a temporary file that native side can read directly,
+                            // instead of keeping it in memory and encoding it to a base64 string
+                            File binaryFile = File.createTempFile("http", ".bin", tmpDir());
+                            FileOutputStream fileOutput = new FileOutputStream(binaryFile);
+                            HttpProgress progress = createProgress("download", bodyLength(connection, decodeEncoding));
+                            byte[] data = HttpBufferPool.acquire();
+                            try {
+                                int nRead;
+                                while ((nRead = is.read(data, 0, data.length)) != -1) {
+                                    fileOutput.write(data, 0, nRead);
+                                    if (progress != null) progress.add(nRead);
+                                }
+                                if (progress != null) progress.finish();
+                            }
+                            catch (Throwable ee) {
+                                fileOutput.close();
+                                binaryFile.delete();
+                                throw ee;
                             }
+                            finally {
+                                HttpBufferPool.release(data);
+                            }
+                            fileOutput.close();
                             is.close();
 
-                            mBinaryContent = buffer.toByteArray();
+                            mResult.binaryContentPath = binaryFile.getAbsolutePath();
                         }
-                        else {
-                            mBinaryContent = null;
+                        else if (is != null) {
+                            // Read directly into an array of the expected size when it is known,
+                            // or into a file if it is too large to be kept in memory
+                            HttpBody body = HttpBody.read(is, bodyLength(connection, decodeEncoding), maxMemorySize(), tmpDir());
+                            if (body.file != null) {
+                                mResult.binaryContentPath = body.file.getAbsolutePath();
+                            }
+                            else {
+                                mResult.binaryContent = body.toByteArray();
+                            }
                         }
-                        mContent = null;
                     }
+
+                    if (cache != null && mResult.statusCode == 200) {
+                        cache.put(
+                            cacheKey, mResult.statusCode, mResult.statusMessage, mResult.headers,
+                            mResult.content != null || mResult.contentPath != null,
+                            mResult.content != null ? mResult.content.getBytes("UTF-8") : mResult.binaryContent,
+                            mResult.contentPath != null ? new File(mResult.contentPath)
+                                : mResult.binaryContentPath != null ? new File(mResult.binaryContentPath) : null
+                        );
+                    }
+                }
+                else if (mResult.statusCode == 416 && resumeFrom > 0) {
+                    // Requested range is not satisfiable. This is expected if the partial file was
+                    // actually complete, otherwise discard it so that next attempt starts over.
+                    long total = contentRangeTotal(connection.getHeaderField("Content-Range"));
+                    tmpDownloadInfoFile.delete();
+                    if (total == resumeFrom) {
+                        mResult.statusCode = 200;
+                        if (digest != null) digest.update(tmpDownloadFile);
+                        mResult.downloadPath = finalizeDownload(tmpDownloadFile, downloadFile, digest);
+                    }
+                    else {
+                        tmpDownloadFile.delete();
+                    }
+                }
+                else if (mResult.statusCode >= 200 && mResult.statusCode < 300 && unzip) {
+                    // Extract archive entries to a tmp directory as they arrive
+                    InputStream inputStream = decodeBody(connection, connection.getInputStream(), decodeEncoding);
+                    HttpProgress progress = createProgress("download", bodyLength(connection, decodeEncoding));
+                    try {
+                        HttpUnzip.extract(inputStream, tmpDownloadFile, digest, progress);
+                    }
+                    catch (Throwable ee) {
+                        HttpUnzip.deleteRecursively(tmpDownloadFile);
+                        throw ee;
+                    }
+
+                    mResult.statusCode = 200;
+                    mResult.downloadPath = finalizeDownload(tmpDownloadFile, downloadFile, digest);
                 }
-                else if (mStatusCode >= 200 && mStatusCode < 300) {
+                else if (mResult.statusCode >= 200 && mResult.statusCode < 300) {
                     // A download path was provided, store result in tmp file, works with binary data as well
-                    FileOutputStream fileOutput = new FileOutputStream(tmpDownloadFile);
-                    InputStream inputStream = connection.getInputStream();
+                    boolean append = false;
+                    if (resumeFrom > 0 && mResult.statusCode == 206) {
+                        // Server accepted to resume, ensure it starts where our partial file ends
+                        if (contentRangeStart(connection.getHeaderField("Content-Range")) != resumeFrom) {
+                            tmpDownloadFile.delete();
+                            tmpDownloadInfoFile.delete();
+                            throw new Error("Unexpected Content-Range when resuming download: " + connection.getHeaderField("Content-Range"));
+                        }
+                        append = true;
+                    }
 
-                    byte[] buffer = new byte[1024];
-                    int bufferLength = 0;
+                    // Keep what we need to resume this download if it gets interrupted
+                    String validator = null;
+                    if (!decompress && (connection.getHeaderField("Content-Encoding") == null
+                            || "identity".equalsIgnoreCase(connection.getHeaderField("Content-Encoding")))) {
+                        validator = connection.getHeaderField("ETag");
+                        if (validator == null || validator.startsWith("W/")) {
+                            // Weak ETags can't be used with If-Range
+                            validator = connection.getHeaderField("Last-Modified");
+                        }
+                    }
+                    if (!append) {
+                        if (validator != null) {
+                            writeDownloadValidator(tmpDownloadInfoFile, validator);
+                        }
+                        else {
+                            tmpDownloadInfoFile.delete();
+                        }
+                    }
 
-                    while ( (bufferLength = inputStream.read(buffer)) > 0 ) {
-                        fileOutput.write(buffer, 0, bufferLength);
+                    FileOutputStream fileOutput = new FileOutputStream(tmpDownloadFile, append);
+                    InputStream inputStream = decodeBody(connection, connection.getInputStream(), decodeEncoding);
+
+                    long contentLength = bodyLength(connection, decodeEncoding);
+                    HttpProgress progress = createProgress("download", append && contentLength >= 0 ? resumeFrom + contentLength : contentLength);
+                    if (progress != null && append) progress.skip(resumeFrom);
+
+                    if (digest != null && append) {
+                        // Bytes of the partial file are part of the digest too
+                        digest.update(tmpDownloadFile);
                     }
-                    fileOutput.close();
 
-                    // Copy to final path
-                    if (downloadFile.exists()) {
-                        if (downloadFile.isDirectory()) {
-                            throw new Error("Cannot overwrite " + downloadFile + " directory.");
+                    byte[] buffer = HttpBufferPool.acquire();
+                    int bufferLength = 0;
+
+                    try {
+                        while ( !mCancelled && (bufferLength = inputStream.read(buffer)) > 0 ) {
+                            fileOutput.write(buffer, 0, bufferLength);
+                            if (digest != null) digest.update(buffer, 0, bufferLength);
+                            if (progress != null) progress.add(bufferLength);
                         }
-                        downloadFile.delete();
                     }
-                    tmpDownloadFile.renameTo(downloadFile);
-                    mFinalDownloadPath = downloadFile.getAbsolutePath();
+                    finally {
+                        HttpBufferPool.release(buffer);
+                        fileOutput.close();
+                    }
+                    if (mCancelled) {
+                        throw new IOException("Cancelled");
+                    }
+                    if (progress != null) progress.finish();
+
+                    tmpDownloadInfoFile.delete();
+                    if (mResult.statusCode == 206) {
+                        // Result is the complete file, not a partial content
+                        mResult.statusCode = 200;
+                    }
+                    mResult.downloadPath = finalizeDownload(tmpDownloadFile, downloadFile, digest);
                 }
 
+                if (skipIfUnchanged && mResult.downloadPath != null && !mResult.notModified) {
+                    rememberDownload(downloadFile);
+                }
+
+                // Response was read completely, connection can serve next requests to this host
+                reusable = !mCancelled;
+
             } catch (Throwable e) {
                 e.printStackTrace();
 
-                mStatusCode = 0;
-                mStatusMessage = e.getClass().getSimpleName() + " " + e.getMessage();
-                mContent = null;
-                mBinaryContent = null;
-                mHeaders = new ArrayList<>();
+                fail(e);
 
             } finally {
-                if (connection != null) connection.disconnect();
+                mConnection = null;
+                if (connection != null) releaseConnection(connection, reusable);
+                if (cacheEntry != null) cacheEntry.close();
+            }
+
+            if (mCancelled && tmpDownloadFile != null) {
+                // Cancelled downloads are not meant to be resumed
+                HttpUnzip.deleteRecursively(tmpDownloadFile);
+                tmpDownloadInfoFile.delete();
             }
 
         } catch (Throwable e) {
             e.printStackTrace();
 
-            mStatusCode = 0;
-            mStatusMessage = e.getClass().getSimpleName() + " " + e.getMessage();
-            mContent = null;
-            mBinaryContent = null;
-            mHeaders = new ArrayList<>();
+            fail(e);
+        }
+
+        if (scheduleRetry()) {
+            return;
+        }
+
+        deliverResult();
+    }
+
+    /**
+     * Give the request to the dispatcher to run it again later, if its retry policy allows it.
+     * @return `false` if the current result should be delivered instead
+     */
+    private boolean scheduleRetry() {
+
+        if (mRetryPolicy == null || mCancelled) return false;
+
+        String retryAfter = null;
+        for (int i = 0; i < mResult.headers.size() - 1; i += 2) {
+            if ("retry-after".equalsIgnoreCase(mResult.headers.get(i))) {
+                retryAfter = mResult.headers.get(i + 1);
+                break;
+            }
+        }
+
+        long delay = mRetryPolicy.delayFor(mAttempts, mResult.statusCode, retryAfter);
+        if (delay < 0) return false;
+
+        // Nobody will read the response of this attempt
+        mResult.deleteFiles();
+
+        mTiming.retried();
+        HttpDispatcher.shared().retry(this, delay);
+        return true;
+
+    }
+
+    private void deliverResult() {
+
+        mTiming.finished();
+        mResult.timing = mTiming;
+        if (mResult.statusCode > 0 && !HttpQueue.TAG.equals(mTag)) {
+            // Network is reachable, queued requests waiting for it can be sent
+            HttpQueue.notifyNetworkAvailable();
+        }
+        if (!mResult.cancelled) {
+            HttpMetrics.shared().record(mTiming, mResult.statusCode == 0);
+        }
+
+        // Requests merged into this one get the same result
+        final List<HttpRequest> followers = HttpDispatcher.shared().takeFollowers(this);
+        if (followers != null) {
+            for (HttpRequest follower : followers) {
+                follower.mResult = shareResult();
+            }
+        }
+
+        // Provide result directly from this worker thread. Native side callbacks are
+        // pushed to the native thread by the bind glue, where they run in batches.
+        deliverTo(takeListener(), mResult);
+        if (followers != null) {
+            for (HttpRequest follower : followers) {
+                deliverTo(follower.takeListener(), follower.mResult);
+            }
+        }
+    }
+
+    private static void deliverTo(Listener listener, HttpResult result) {
+
+        if (listener != null) {
+            listener.onComplete(result);
+        }
+        else {
+            // Listener was cancelled, nobody will read the response files
+            result.deleteFiles();
+        }
+
+    }
+
+    /** Copy of this request's result for another listener. Temporary files are owned by their receiver, so they are copied too. */
+    private HttpResult shareResult() {
+
+        HttpResult result = mResult.copy();
+        if (mResult.binaryContentPath != null || mResult.contentPath != null) {
+            try {
+                if (mResult.binaryContentPath != null) {
+                    File binaryFile = File.createTempFile("http", ".bin", tmpDir());
+                    copyFile(new File(mResult.binaryContentPath), binaryFile);
+                    result.binaryContentPath = binaryFile.getAbsolutePath();
+                }
+                if (mResult.contentPath != null) {
+                    File contentFile = File.createTempFile("http", ".txt", tmpDir());
+                    copyFile(new File(mResult.contentPath), contentFile);
+                    result.contentPath = contentFile.getAbsolutePath();
+                }
+            } catch (Throwable e) {
+                e.printStackTrace();
+                result = new HttpResult();
+                result.statusMessage = e.getClass().getSimpleName() + " " + e.getMessage();
+            }
+        }
+        return result;
+
+    }
+
+    private static String computeCoalescingKey(Map<String,Object> params, String downloadPath) {
+
+        if (Boolean.FALSE.equals(params.get("coalesce"))) return null;
+        if (params.get("content") != null || params.get("contentPath") != null) return null;
+
+        String method = params.get("method") != null ? (String) params.get("method") : "GET";
+        if (!"GET".equals(method) && !"HEAD".equals(method)) return null;
+
+        StringBuilder key = new StringBuilder();
+        key.append(method).append(' ').append(params.get("url"));
+        if (params.get("headers") != null) {
+            List<String> headers = (List<String>) params.get("headers");
+            for (int i = 0; i < headers.size(); i += 2) {
+                key.append('\n').append(headers.get(i)).append(": ").append(i + 1 < headers.size() ? headers.get(i + 1) : null);
+            }
         }
+        // Options that change how the result is delivered must match as well
+        key.append("\ndownload: ").append(downloadPath);
+        key.append("\nbinaryToFile: ").append(Boolean.TRUE.equals(params.get("binaryToFile")));
+        key.append("\ndigest: ").append(params.get("digest"));
+        key.append("\nmaxMemorySize: ").append(params.get("maxMemorySize"));
+        key.append("\ndecompress: ").append(Boolean.TRUE.equals(params.get("decompress")));
+        key.append("\nunzip: ").append(Boolean.TRUE.equals(params.get("unzip")));
+        key.append("\nmaxBytesPerSecond: ").append(params.get("maxBytesPerSecond"));
+        key.append("\nskipIfUnchanged: ").append(Boolean.TRUE.equals(params.get("skipIfUnchanged")));
+        // Followers get the result of the leader's attempts, so these must match as well
+        key.append("\nretry: ").append(HttpRetryPolicy.fromParams(params));
+        key.append("\ncache: ").append(Boolean.TRUE.equals(params.get("cache")));
+        key.append("\ntimeout: ").append(params.get("timeout"));
+        key.append("\nresume: ").append(!Boolean.FALSE.equals(params.get("resume")));
+        return key.toString();
+
+    }
 
-        // Provide result
-        new Handler(Looper.getMainLooper()).post(new Runnable() {
+    private void fail(Throwable e) {
+
+        mResult.deleteFiles();
+
+        mResult = new HttpResult();
+        if (mCancelled) {
+            mResult.statusMessage = "Cancelled";
+            mResult.cancelled = true;
+        }
+        else {
+            mResult.statusMessage = e.getClass().getSimpleName() + " " + e.getMessage();
+        }
+
+    }
+
+    /** Create progress tracker for the current transfer, or `null` if nobody listens to progress */
+    private HttpProgress createProgress(String phase, long total) {
+
+        // Requests merged into this one, now or while it runs, may want progress even if this one doesn't
+        if (mProgressListener == null && mCoalescingKey == null) return null;
+
+        long minInterval = HttpProgress.DEFAULT_MIN_INTERVAL;
+        if (mParams.get("progressInterval") != null) {
+            minInterval = ((Number) mParams.get("progressInterval")).longValue();
+        }
+        long minBytes = HttpProgress.DEFAULT_MIN_BYTES;
+        if (mParams.get("progressMinBytes") != null) {
+            minBytes = ((Number) mParams.get("progressMinBytes")).longValue();
+        }
+
+        return new HttpProgress(new HttpProgress.Listener() {
             @Override
-            public void run() {
-                if (mListener != null) {
-                    mListener.onComplete(mStatusCode, mStatusMessage, mContent, mBinaryContent, mFinalDownloadPath, mHeaders);
-                    mListener = null;
+            public void onProgress(String phase, long transferred, long total, long bytesPerSecond) {
+                // Requests merged into this one follow the same progress
+                List<HttpProgress.Listener> listeners = new ArrayList<>();
+                synchronized (HttpDispatcher.shared()) {
+                    if (mProgressListener != null) listeners.add(mProgressListener);
+                    if (mFollowers != null) {
+                        for (HttpRequest follower : mFollowers) {
+                            if (follower.mProgressListener != null) listeners.add(follower.mProgressListener);
+                        }
+                    }
+                }
+                for (HttpProgress.Listener listener : listeners) {
+                    listener.onProgress(phase, transferred, total, bytesPerSecond);
+                }
+            }
+        }, phase, total, minInterval, minBytes);
+
+    }
+
+    /** Largest response body kept in memory, from `maxMemorySize` param or global setting */
+    private long maxMemorySize() {
+
+        if (mParams.get("maxMemorySize") != null) {
+            return ((Number) mParams.get("maxMemorySize")).longValue();
+        }
+        return HttpBody.getMaxMemorySize();
+
+    }
+
+    /** Length of response body from headers, or -1 if unknown */
+    private static long contentLength(HttpURLConnection connection) {
+
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength == null) return -1;
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+    }
+
+    /**
+     * Length of the body as it will be read, or -1 if unknown, which is the case
+     * when the body is inflated: `Content-Length` is then the compressed size.
+     */
+    private long bodyLength(HttpURLConnection connection, boolean decodeEncoding) {
+
+        if (decodeEncoding && HttpEncoding.isCompressed(connection.getHeaderField("Content-Encoding"))) {
+            return -1;
+        }
+        if (Boolean.TRUE.equals(mParams.get("decompress"))) {
+            return -1;
+        }
+        return contentLength(connection);
+
+    }
+
+    /**
+     * Wrap response stream to count received bytes, and to inflate it if the server compressed it as we asked,
+     * or, if `decompress` param is `true`, if the body is itself a gzip file (`.gz` assets).
+     */
+    private InputStream decodeBody(HttpURLConnection connection, InputStream is, boolean decodeEncoding) throws IOException {
+
+        is = mTiming.countIn(is);
+        is = HttpThrottle.wrap(is, mThrottle, mPriority == HttpDispatcher.PRIORITY_BACKGROUND);
+
+        if (!HttpEncoding.hasBody(connection)) {
+            return is;
+        }
+        if (decodeEncoding) {
+            is = HttpEncoding.decode(is, connection.getHeaderField("Content-Encoding"));
+        }
+        if (Boolean.TRUE.equals(mParams.get("decompress"))) {
+            is = HttpEncoding.gunzipIfNeeded(is);
+        }
+        return is;
+
+    }
+
+    /**
+     * Send request body, if any. Body is either `content` param (String, sent as UTF-8, or byte[])
+     * or the file at `contentPath` param, which is streamed from disk. Body is never buffered
+     * by the connection: its length is sent upfront when known, or it's sent in chunks
+     * if `chunked` param is `true`.
+     */
+    private void writeBody(HttpURLConnection connection) throws IOException {
+
+        Map<String,Object> params = mParams;
+
+        byte[] bytes = null;
+        File file = null;
+        Object content = params.get("content");
+        if (content instanceof byte[]) {
+            bytes = (byte[]) content;
+        }
+        else if (content != null) {
+            bytes = content.toString().getBytes("UTF-8");
+        }
+        else if (params.get("contentPath") != null) {
+            file = new File((String) params.get("contentPath"));
+            if (!file.isAbsolute()) {
+                file = new File(Support.getContext().getFilesDir().getAbsolutePath(), (String) params.get("contentPath"));
+            }
+            if (!file.isFile()) {
+                throw new IOException("Cannot send " + file + ": not a file");
+            }
+        }
+        else {
+            mTiming.connectStart();
+            connection.connect();
+            mTiming.connectEnd();
+            return;
+        }
+
+        long length = bytes != null ? bytes.length : file.length();
+        connection.setDoOutput(true);
+        if (Boolean.TRUE.equals(params.get("chunked")) || length > Integer.MAX_VALUE) {
+            connection.setChunkedStreamingMode(0);
+        }
+        else {
+            connection.setFixedLengthStreamingMode((int) length);
+        }
+
+        HttpProgress progress = createProgress("upload", length);
+
+        mTiming.connectStart();
+        OutputStream os = connection.getOutputStream();
+        mTiming.connectEnd();
+        try {
+            if (bytes != null) {
+                // Write in chunks to be able to report progress
+                int chunkSize = progress != null ? 16384 : bytes.length;
+                for (int offset = 0; offset < bytes.length; offset += chunkSize) {
+                    int count = Math.min(chunkSize, bytes.length - offset);
+                    os.write(bytes, offset, count);
+                    mTiming.addBytesOut(count);
+                    if (progress != null) progress.add(count);
+                }
+            }
+            else {
+                InputStream input = new FileInputStream(file);
+                byte[] buffer = HttpBufferPool.acquire();
+                try {
+                    int nRead;
+                    while ((nRead = input.read(buffer)) != -1) {
+                        os.write(buffer, 0, nRead);
+                        mTiming.addBytesOut(nRead);
+                        if (progress != null) progress.add(nRead);
+                    }
+                }
+                finally {
+                    HttpBufferPool.release(buffer);
+                    input.close();
+                }
+            }
+            os.flush();
+        }
+        finally {
+            os.close();
+        }
+        mTiming.requestSent();
+        if (progress != null) progress.finish();
+
+    }
+
+    /**
+     * Download with several concurrent range requests when `segments` param is above 1.
+     * @return `true` if the file was downloaded, `false` if a regular download should be done instead
+     */
+    private boolean downloadSegmented(URL url, File tmpDownloadFile, File downloadFile, HttpDigest digest) throws IOException {
+
+        Map<String,Object> params = mParams;
+
+        if (params.get("segments") == null) return false;
+        int segments = (Integer) params.get("segments");
+        if (segments <= 1) return false;
+        if (params.get("method") != null && !"GET".equals(params.get("method"))) return false;
+
+        long minSegmentSize = HttpSegmentedDownload.DEFAULT_MIN_SEGMENT_SIZE;
+        if (params.get("segmentMinSize") != null) {
+            minSegmentSize = ((Number) params.get("segmentMinSize")).longValue();
+        }
+
+        int timeout = 0;
+        if (params.get("timeout") != null) {
+            timeout = (Integer) params.get("timeout") * 1000;
+        }
+
+        // Additional segments are connections too: they count against global and per-host limits
+        HttpDispatcher dispatcher = HttpDispatcher.shared();
+        int extraSlots = dispatcher.acquireSlots(mHost, Math.min(segments, HttpSegmentedDownload.MAX_SEGMENTS) - 1);
+        if (extraSlots == 0) return false;
+        segments = extraSlots + 1;
+
+        HttpSegmentedDownload segmented = new HttpSegmentedDownload(
+            url, (List<String>) params.get("headers"), timeout, dispatcher.executor()
+        );
+        try {
+            if (!segmented.probe(segments, minSegmentSize)) {
+                return false;
+            }
+
+            segmented.setProgress(createProgress("download", segmented.getContentLength()));
+            segmented.setThrottle(mThrottle, mPriority == HttpDispatcher.PRIORITY_BACKGROUND);
+            mSegmented = segmented;
+            try {
+                if (mCancelled) {
+                    throw new IOException("Cancelled");
                 }
+                segmented.download(tmpDownloadFile, segments);
             }
-        });
+            catch (IOException e) {
+                // A preallocated file with missing segments can't be resumed
+                tmpDownloadFile.delete();
+                throw e;
+            }
+            finally {
+                mSegmented = null;
+            }
+        }
+        finally {
+            dispatcher.releaseSlots(mHost, extraSlots);
+        }
+
+        mResult.statusCode = 200;
+        mResult.statusMessage = "OK";
+        mResult.headers = segmented.getResponseHeaders();
+        mTiming.addBytesIn(segmented.getContentLength());
+        if (digest != null) {
+            // Segments are written out of order, so the digest needs its own pass once the file is complete
+            digest.update(tmpDownloadFile);
+        }
+        mResult.downloadPath = finalizeDownload(tmpDownloadFile, downloadFile, digest);
+        return true;
+
+    }
+
+    /** Fill result from a cached response */
+    private void useCacheEntry(HttpCache.Entry entry) throws IOException {
+
+        mResult.statusCode = entry.statusCode;
+        mResult.statusMessage = entry.statusMessage;
+        mResult.headers = entry.headers;
+        mResult.cached = true;
+
+        // Read from the body opened with the entry, the body file itself may have been replaced since
+        FileInputStream body = entry.body;
+        entry.body = null;
+        try {
+            long length = body.getChannel().size();
+            if (entry.text && length > maxMemorySize()) {
+                File contentFile = File.createTempFile("http", ".txt", tmpDir());
+                copyStream(body, contentFile);
+                mResult.contentPath = contentFile.getAbsolutePath();
+            }
+            else if (entry.text) {
+                HttpBody data = HttpBody.read(body, length);
+                mResult.content = new String(data.data, 0, data.length, "UTF-8");
+            }
+            else if (Boolean.TRUE.equals(mParams.get("binaryToFile")) || length > maxMemorySize()) {
+                // Native side takes ownership of the file it receives, so give it a copy
+                File binaryFile = File.createTempFile("http", ".bin", tmpDir());
+                copyStream(body, binaryFile);
+                mResult.binaryContentPath = binaryFile.getAbsolutePath();
+            }
+            else {
+                mResult.binaryContent = HttpBody.read(body, length).toByteArray();
+            }
+        }
+        finally {
+            body.close();
+        }
+
+    }
+
+    /**
+     * Move a complete tmp download file to its final path. If an expected digest was given
+     * and doesn't match, the tmp file is discarded instead and the download fails.
+     */
+    private String finalizeDownload(File tmpDownloadFile, File downloadFile, HttpDigest digest) throws IOException {
+
+        if (digest != null) {
+            if (!digest.matches()) {
+                HttpUnzip.deleteRecursively(tmpDownloadFile);
+                throw new IOException("Digest mismatch for " + downloadFile + ": expected " + digest.getExpected() + ", got " + digest.value());
+            }
+            mResult.digest = digest.toString();
+        }
+
+        if (tmpDownloadFile.isDirectory()) {
+            // Extracted archive: swap directories, so that the target is never partially extracted
+            File previous = null;
+            if (downloadFile.exists()) {
+                previous = new File(downloadFile.getAbsolutePath() + ".old");
+                HttpUnzip.deleteRecursively(previous);
+                if (!downloadFile.renameTo(previous)) {
+                    HttpUnzip.deleteRecursively(tmpDownloadFile);
+                    throw new IOException("Failed to replace " + downloadFile);
+                }
+            }
+            if (!tmpDownloadFile.renameTo(downloadFile)) {
+                if (previous != null) previous.renameTo(downloadFile);
+                HttpUnzip.deleteRecursively(tmpDownloadFile);
+                throw new IOException("Failed to move extracted files to " + downloadFile);
+            }
+            if (previous != null) {
+                HttpUnzip.deleteRecursively(previous);
+            }
+            return downloadFile.getAbsolutePath();
+        }
+
+        if (downloadFile.exists()) {
+            if (downloadFile.isDirectory()) {
+                throw new Error("Cannot overwrite " + downloadFile + " directory.");
+            }
+            downloadFile.delete();
+        }
+        tmpDownloadFile.renameTo(downloadFile);
+        return downloadFile.getAbsolutePath();
+
+    }
+
+    /** Store validators of a file that was just downloaded, to skip it next time if it didn't change */
+    private void rememberDownload(File downloadFile) {
+
+        try {
+            HttpDownloadIndex.shared().put(downloadFile, (String) mParams.get("url"), mResult.headers, mResult.digest);
+        } catch (Throwable e) {
+            e.printStackTrace();
+        }
+
+    }
+
+    private static String readDownloadValidator(File infoFile) {
+
+        if (!infoFile.exists()) return null;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(infoFile), "UTF-8"));
+            String validator = reader.readLine();
+            reader.close();
+            return validator != null && validator.length() > 0 ? validator : null;
+        } catch (Throwable e) {
+            e.printStackTrace();
+            return null;
+        }
+
+    }
+
+    private static void writeDownloadValidator(File infoFile, String validator) throws IOException {
+
+        FileOutputStream output = new FileOutputStream(infoFile);
+        output.write(validator.getBytes("UTF-8"));
+        output.close();
+
+    }
+
+    /** Parse first byte position from a `Content-Range: bytes start-end/total` header */
+    private static long contentRangeStart(String contentRange) {
+
+        if (contentRange == null) return -1;
+        contentRange = contentRange.trim();
+        if (!contentRange.startsWith("bytes ")) return -1;
+        int dashIndex = contentRange.indexOf('-');
+        if (dashIndex == -1) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(6, dashIndex).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+    }
+
+    /** Parse total length (the part after the slash) from a `Content-Range` header */
+    private static long contentRangeTotal(String contentRange) {
+
+        if (contentRange == null) return -1;
+        int slashIndex = contentRange.lastIndexOf('/');
+        if (slashIndex == -1) return -1;
+        try {
+            return Long.parseLong(contentRange.substring(slashIndex + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+
+    }
+
+    /**
+     * Give a connection back to the keep-alive pool by closing its response stream, so that next
+     * requests to the same host skip DNS, TCP and TLS setup. Connections that failed or were
+     * cancelled are disconnected instead.
+     */
+    static void releaseConnection(HttpURLConnection connection, boolean reusable) {
+
+        if (reusable) {
+            try {
+                InputStream is = connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream();
+                if (is != null) is.close();
+                return;
+            }
+            catch (Throwable e) {
+                // Not reusable after all
+            }
+        }
+        connection.disconnect();
+
+    }
+
+    static void copyFile(File source, File destination) throws IOException {
+
+        copyStream(new FileInputStream(source), destination);
+
     }
+
+    /** Write the whole stream to `destination`, then close it */
+    static void copyStream(InputStream input, File destination) throws IOException {
+
+        FileOutputStream output = new FileOutputStream(destination);
+        byte[] buffer = HttpBufferPool.acquire();
+        try {
+            int nRead;
+            while ((nRead = input.read(buffer)) != -1) {
+                output.write(buffer, 0, nRead);
+            }
+        }
+        finally {
+            HttpBufferPool.release(buffer);
+            input.close();
+            output.close();
+        }
+
+    }
+
+    /** Directory where temporary response files are written */
+    static File tmpDir() {
+
+        File dir = new File(Support.getContext().getCacheDir(), "ceramic-http");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return dir;
+
+    }
+
     private static boolean isBinaryMimeType(String type) {
         int semicolonIndex = type.indexOf(';');
         if (semicolonIndex != -1) {
@@ -0,0 +1,83 @@
+package ceramic.support.http;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Outcome of an HTTP request, given to HttpRequest.Listener on completion.
+ */
+public class HttpResult {
+
+    /** HTTP status code, or 0 if the request could not complete */
+    public int statusCode = 0;
+
+    public String statusMessage = null;
+
+    /** Response body, if it was decoded as text */
+    public String content = null;
+
+    /** Path of a temporary UTF-8 file holding the text response body, if it was too large to be kept in memory */
+    public String contentPath = null;
+
+    /** Response body, if it was kept as binary in memory */
+    public byte[] binaryContent = null;
+
+    /** Path of a temporary file holding the binary response body, if it was delivered as a file */
+    public String binaryContentPath = null;
+
+    /** `true` if the request was cancelled before completing */
+    public boolean cancelled = false;
+
+    /** `true` if the response was served from HttpCache */
+    public boolean cached = false;
+
+    /** Final path of the downloaded file, if any */
+    public String downloadPath = null;
+
+    /** `true` if the download was skipped because the file didn't change on server (`skipIfUnchanged` param) */
+    public boolean notModified = false;
+
+    /** Digest of the downloaded file as `algorithm:hex`, if a `digest` param was given */
+    public String digest = null;
+
+    /** Timing breakdown and byte counts of the request */
+    public HttpTiming timing = null;
+
+    /** Response headers as a flat list: [key, value, key, value, ...] */
+    public List<String> headers = new ArrayList<>();
+
+    /** Delete temporary files holding the response body, when nobody will read them */
+    public void deleteFiles() {
+
+        if (contentPath != null) {
+            new File(contentPath).delete();
+        }
+        if (binaryContentPath != null) {
+            new File(binaryContentPath).delete();
+        }
+
+    }
+
+    /** Shallow copy, used to give the same result to several listeners */
+    public HttpResult copy() {
+
+        HttpResult result = new HttpResult();
+        result.statusCode = statusCode;
+        result.statusMessage = statusMessage;
+        result.content = content;
+        result.contentPath = contentPath;
+        result.binaryContent = binaryContent;
+        result.binaryContentPath = binaryContentPath;
+        result.cancelled = cancelled;
+        result.cached = cached;
+        result.downloadPath = downloadPath;
+        result.notModified = notModified;
+        result.digest = digest;
+        result.timing = timing;
+        result.headers = headers;
+        return result;
+
+    }
+
+}
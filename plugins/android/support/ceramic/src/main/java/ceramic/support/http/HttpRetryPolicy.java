@@ -0,0 +1,152 @@
+package ceramic.support.http;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * When and how long to wait before sending a failed request again, configured
+ * with a `retry` param: `{maxAttempts, baseDelay, maxDelay, jitter, statuses}`.
+ * Delays are in milliseconds and grow exponentially from `baseDelay`. Only idempotent
+ * methods are retried, after network errors or when the response status is in `statuses`.
+ */
+public class HttpRetryPolicy {
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    public static final long DEFAULT_BASE_DELAY = 500;
+
+    public static final long DEFAULT_MAX_DELAY = 30000;
+
+    public static final double DEFAULT_JITTER = 0.5;
+
+    private static final int[] DEFAULT_STATUSES = { 408, 429, 500, 502, 503, 504 };
+
+    private static final Random sRandom = new Random();
+
+    /** Total number of attempts, including the first one */
+    public int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+
+    public long baseDelay = DEFAULT_BASE_DELAY;
+
+    /** Longest delay between two attempts. A longer `Retry-After` makes the request fail instead. */
+    public long maxDelay = DEFAULT_MAX_DELAY;
+
+    /** Fraction of each delay that is randomized (0: fixed delays, 1: anywhere between 0 and the delay) */
+    public double jitter = DEFAULT_JITTER;
+
+    /** Response statuses that are worth retrying. Network errors (status 0) always are. */
+    public List<Integer> statuses = new ArrayList<>();
+
+    /** Create a policy from request params, or return `null` if the request should not be retried */
+    public static HttpRetryPolicy fromParams(Map<String,Object> params) {
+
+        Object value = params.get("retry");
+        if (!(value instanceof Map)) return null;
+
+        String method = params.get("method") != null ? ((String) params.get("method")).toUpperCase(Locale.ROOT) : "GET";
+        if (!isIdempotent(method)) return null;
+
+        Map<String,Object> retry = (Map<String,Object>) value;
+        HttpRetryPolicy policy = new HttpRetryPolicy();
+        if (retry.get("maxAttempts") != null) {
+            policy.maxAttempts = ((Number) retry.get("maxAttempts")).intValue();
+        }
+        if (retry.get("baseDelay") != null) {
+            policy.baseDelay = ((Number) retry.get("baseDelay")).longValue();
+        }
+        if (retry.get("maxDelay") != null) {
+            policy.maxDelay = ((Number) retry.get("maxDelay")).longValue();
+        }
+        if (retry.get("jitter") != null) {
+            policy.jitter = Math.max(0, Math.min(1, ((Number) retry.get("jitter")).doubleValue()));
+        }
+        if (retry.get("statuses") != null) {
+            for (Object status : (List<Object>) retry.get("statuses")) {
+                policy.statuses.add(((Number) status).intValue());
+            }
+        }
+        else {
+            for (int status : DEFAULT_STATUSES) {
+                policy.statuses.add(status);
+            }
+        }
+
+        return policy.maxAttempts > 1 ? policy : null;
+
+    }
+
+    /** Resolved settings, so that two `retry` params meaning the same policy give the same string */
+    @Override
+    public String toString() {
+
+        return "{maxAttempts: " + maxAttempts + ", baseDelay: " + baseDelay + ", maxDelay: " + maxDelay
+            + ", jitter: " + jitter + ", statuses: " + statuses + "}";
+
+    }
+
+    public static boolean isIdempotent(String method) {
+
+        switch (method) {
+            case "GET":
+            case "HEAD":
+            case "OPTIONS":
+            case "PUT":
+            case "DELETE":
+            case "TRACE":
+                return true;
+            default:
+                return false;
+        }
+
+    }
+
+    /**
+     * Delay before the next attempt, in milliseconds.
+     * @param attempt       number of attempts done so far
+     * @param statusCode    status of the last attempt, 0 after a network error
+     * @param retryAfter    value of `Retry-After` response header, if any
+     * @return -1 if the request should not be retried
+     */
+    public long delayFor(int attempt, int statusCode, String retryAfter) {
+
+        if (attempt >= maxAttempts) return -1;
+        if (statusCode != 0 && !statuses.contains(statusCode)) return -1;
+
+        long delay = baseDelay;
+        for (int i = 1; i < attempt && delay < maxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, maxDelay);
+        if (jitter > 0) {
+            double random;
+            synchronized (sRandom) {
+                random = sRandom.nextDouble();
+            }
+            delay -= (long) (delay * jitter * random);
+        }
+
+        // Server knows better when it will be available again
+        long serverDelay = parseRetryAfter(retryAfter);
+        if (serverDelay > maxDelay) return -1;
+        return Math.max(delay, serverDelay);
+
+    }
+
+    /** Parse a `Retry-After` value (seconds or HTTP date) into a delay in milliseconds, -1 if missing or invalid */
+    static long parseRetryAfter(String retryAfter) {
+
+        if (retryAfter == null) return -1;
+        retryAfter = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(retryAfter) * 1000);
+        } catch (NumberFormatException e) {
+            long time = HttpCache.parseHttpDate(retryAfter);
+            return time > 0 ? Math.max(0, time - System.currentTimeMillis()) : -1;
+        }
+
+    }
+
+}
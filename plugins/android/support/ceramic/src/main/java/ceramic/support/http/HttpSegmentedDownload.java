@@ -0,0 +1,329 @@
+package ceramic.support.http;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Downloads a file as several byte ranges fetched concurrently,
+ * each one written at its own offset of a preallocated file.
+ * Only used when the server supports ranges and the file is large enough,
+ * otherwise the caller falls back to a regular single connection download.
+ */
+public class HttpSegmentedDownload {
+
+    /** Files smaller than this are not worth splitting */
+    public static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    /** Upper bound of concurrent connections for a single download */
+    public static final int MAX_SEGMENTS = 8;
+
+    private final URL mUrl;
+    private final List<String> mHeaders;
+    private final int mTimeout;
+    private final ExecutorService mExecutor;
+
+    private long mContentLength = -1;
+    private String mValidator = null;
+    private List<String> mResponseHeaders = new ArrayList<>();
+
+    private HttpProgress mProgress = null;
+    private HttpThrottle mThrottle = null;
+    private boolean mBackground = false;
+
+    private volatile boolean mAborted = false;
+
+    /**
+     * @param url       the remote file
+     * @param headers   request headers as a flat list: [key, value, key, value, ...], can be null
+     * @param timeout   connect and read timeout, in milliseconds (0 for system default)
+     * @param executor  used to run additional segments besides the calling thread
+     */
+    public HttpSegmentedDownload(URL url, List<String> headers, int timeout, ExecutorService executor) {
+
+        mUrl = url;
+        mHeaders = headers;
+        mTimeout = timeout;
+        mExecutor = executor;
+
+    }
+
+    /** Total length of the remote file, as reported by the probe */
+    public long getContentLength() {
+        return mContentLength;
+    }
+
+    /** Stop every segment. The running `download()` call then fails. */
+    public void abort() {
+        mAborted = true;
+    }
+
+    /** Report download progress of all segments combined, can be null */
+    public void setProgress(HttpProgress progress) {
+        mProgress = progress;
+    }
+
+    /** Rate limit shared by all segments, can be null. Global limits apply in any case. */
+    public void setThrottle(HttpThrottle throttle, boolean background) {
+        mThrottle = throttle;
+        mBackground = background;
+    }
+
+    /** Headers of the probe response, as a flat list: [key, value, key, value, ...] */
+    public List<String> getResponseHeaders() {
+        return mResponseHeaders;
+    }
+
+    /**
+     * Check that the server supports byte ranges and get the file length.
+     * @return `true` if the file can be downloaded in segments of at least `minSegmentSize` bytes
+     */
+    public boolean probe(int segments, long minSegmentSize) throws IOException {
+
+        HttpURLConnection connection = open();
+        boolean reusable = false;
+        try {
+            connection.setRequestProperty("Range", "bytes=0-0");
+            int statusCode = connection.getResponseCode();
+
+            mResponseHeaders = new ArrayList<>();
+            for (Map.Entry<String, List<String>> entry : connection.getHeaderFields().entrySet()) {
+                String name = entry.getKey();
+                if (name != null) {
+                    for (String value : entry.getValue()) {
+                        mResponseHeaders.add(name);
+                        mResponseHeaders.add(value);
+                    }
+                }
+            }
+
+            if (statusCode != 206) {
+                // Server ignored the range: don't read a body that would be the whole file,
+                // the caller downloads it with a regular request instead
+                return false;
+            }
+
+            // Single byte body, connection can then be used by the first segment
+            drain(connection, statusCode);
+            reusable = true;
+
+            String contentRange = connection.getHeaderField("Content-Range");
+            int slashIndex = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+            if (slashIndex == -1) {
+                return false;
+            }
+            try {
+                mContentLength = Long.parseLong(contentRange.substring(slashIndex + 1).trim());
+            } catch (NumberFormatException e) {
+                return false;
+            }
+
+            // Every segment must come from the same version of the file
+            mValidator = connection.getHeaderField("ETag");
+            if (mValidator == null || mValidator.startsWith("W/")) {
+                mValidator = connection.getHeaderField("Last-Modified");
+            }
+
+            return mContentLength >= segments * minSegmentSize;
+        }
+        finally {
+            HttpRequest.releaseConnection(connection, reusable);
+        }
+
+    }
+
+    /**
+     * Download the file into `file`, which is truncated or extended to the final length.
+     * `probe()` must have returned `true` before calling this.
+     */
+    public void download(File file, int segments) throws IOException {
+
+        if (mContentLength < 0) {
+            throw new IllegalStateException("Content length is unknown, probe() must be called first");
+        }
+        segments = Math.max(1, Math.min(segments, MAX_SEGMENTS));
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(mContentLength);
+            final FileChannel channel = randomAccessFile.getChannel();
+
+            long segmentSize = mContentLength / segments;
+            List<Future<?>> futures = new ArrayList<>();
+            Throwable error = null;
+
+            for (int i = 1; i < segments; i++) {
+                final long start = i * segmentSize;
+                final long end = i == segments - 1 ? mContentLength - 1 : start + segmentSize - 1;
+                futures.add(mExecutor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            downloadSegment(channel, start, end);
+                        } catch (IOException e) {
+                            mAborted = true;
+                            throw new SegmentError(e);
+                        }
+                    }
+                }));
+            }
+
+            // First segment runs on the current thread
+            try {
+                downloadSegment(channel, 0, segments == 1 ? mContentLength - 1 : segmentSize - 1);
+            } catch (Throwable e) {
+                mAborted = true;
+                error = e;
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (Throwable e) {
+                    mAborted = true;
+                    if (error == null) error = e;
+                }
+            }
+
+            if (error != null) {
+                Throwable cause = error;
+                while (cause.getCause() != null && !(cause instanceof IOException)) {
+                    cause = cause.getCause();
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause);
+            }
+
+            channel.force(false);
+
+            if (mProgress != null) mProgress.finish();
+        }
+        finally {
+            randomAccessFile.close();
+        }
+
+    }
+
+    private void downloadSegment(FileChannel channel, long start, long end) throws IOException {
+
+        if (mAborted) {
+            throw new IOException("Segmented download aborted");
+        }
+
+        HttpURLConnection connection = open();
+        boolean reusable = false;
+        try {
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+            if (mValidator != null) {
+                connection.setRequestProperty("If-Range", mValidator);
+            }
+
+            int statusCode = connection.getResponseCode();
+            if (statusCode != 206) {
+                // Not reading the body, which could be the whole file
+                throw new IOException("Unexpected status " + statusCode + " for segment " + start + "-" + end);
+            }
+
+            InputStream is = HttpThrottle.wrap(connection.getInputStream(), mThrottle, mBackground);
+            byte[] data = HttpBufferPool.acquire();
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            long position = start;
+            try {
+                int nRead;
+                while (!mAborted && (nRead = is.read(data, 0, data.length)) != -1) {
+                    buffer.clear();
+                    buffer.limit(nRead);
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    if (mProgress != null) mProgress.add(nRead);
+                }
+            }
+            finally {
+                HttpBufferPool.release(data);
+                is.close();
+            }
+
+            if (mAborted) {
+                throw new IOException("Segmented download aborted");
+            }
+            if (position != end + 1) {
+                throw new IOException("Incomplete segment " + start + "-" + end + ", got " + (position - start) + " bytes");
+            }
+            reusable = true;
+        }
+        finally {
+            HttpRequest.releaseConnection(connection, reusable);
+        }
+
+    }
+
+    private HttpURLConnection open() throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) mUrl.openConnection();
+
+        String userAgent = System.getProperty("http.agent");
+        if (userAgent != null) {
+            connection.setRequestProperty("User-Agent", userAgent);
+        }
+
+        if (mHeaders != null) {
+            for (int i = 0; i < mHeaders.size(); i += 2) {
+                String key = mHeaders.get(i);
+                String val = mHeaders.get(i + 1);
+                if (val != null) {
+                    connection.setRequestProperty(key, val);
+                }
+            }
+        }
+
+        // Byte ranges only make sense on the raw, non-encoded body
+        connection.setRequestProperty("Accept-Encoding", "identity");
+
+        if (mTimeout > 0) {
+            connection.setConnectTimeout(mTimeout);
+            connection.setReadTimeout(mTimeout);
+        }
+
+        return connection;
+
+    }
+
+    private static void drain(HttpURLConnection connection, int statusCode) {
+
+        try {
+            InputStream is = statusCode >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (is != null) {
+                byte[] data = new byte[1024];
+                while (is.read(data) != -1) {}
+                is.close();
+            }
+        } catch (Throwable e) {
+            // Nothing to drain
+        }
+
+    }
+
+    private static class SegmentError extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        SegmentError(IOException cause) {
+            super(cause);
+        }
+
+    }
+
+}
@@ -0,0 +1,117 @@
+package ceramic.support.http;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Locale;
+
+/**
+ * Decodes text response bodies in a single pass, using the charset declared
+ * in `Content-Type` (UTF-8 if none). Text is returned exactly as sent: line
+ * endings are preserved and nothing is appended.
+ */
+public class HttpText {
+
+    public static final Charset DEFAULT_CHARSET = Charset.forName("UTF-8");
+
+    /** Get charset from a `Content-Type` header value, or UTF-8 if missing or unsupported */
+    public static Charset charsetOf(String contentType) {
+
+        if (contentType == null) return DEFAULT_CHARSET;
+
+        String[] parts = contentType.split(";");
+        for (int i = 1; i < parts.length; i++) {
+            String part = parts[i].trim();
+            if (part.toLowerCase(Locale.ROOT).startsWith("charset=")) {
+                String name = part.substring(8).trim();
+                if (name.length() >= 2 && name.startsWith("\"") && name.endsWith("\"")) {
+                    name = name.substring(1, name.length() - 1);
+                }
+                try {
+                    return Charset.forName(name);
+                } catch (Throwable e) {
+                    return DEFAULT_CHARSET;
+                }
+            }
+        }
+
+        return DEFAULT_CHARSET;
+
+    }
+
+    /**
+     * Read the whole stream and decode it.
+     * @param contentLength  expected byte count from `Content-Length`, or -1 if unknown
+     */
+    public static String decode(InputStream is, long contentLength, Charset charset) throws IOException {
+
+        HttpBody body = HttpBody.read(is, contentLength);
+        return decode(body.data, body.length, charset);
+
+    }
+
+    /**
+     * Convert a text file to UTF-8, streaming it. The file is returned as is if already in UTF-8,
+     * otherwise it is replaced by a new file in the same directory.
+     */
+    public static File toUtf8File(File file, Charset charset) throws IOException {
+
+        if (charset.equals(DEFAULT_CHARSET)) return file;
+
+        File converted = File.createTempFile("http", ".txt", file.getParentFile());
+        Reader reader = new InputStreamReader(new FileInputStream(file), charset);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(converted), DEFAULT_CHARSET);
+        try {
+            char[] buffer = new char[8192];
+            int nRead;
+            while ((nRead = reader.read(buffer)) != -1) {
+                writer.write(buffer, 0, nRead);
+            }
+        }
+        catch (Throwable e) {
+            converted.delete();
+            throw e;
+        }
+        finally {
+            reader.close();
+            writer.close();
+        }
+        file.delete();
+        return converted;
+
+    }
+
+    public static String decode(byte[] data, int length, Charset charset) throws CharacterCodingException {
+
+        CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        // Enough room for any input, so that decoding is done in one pass (exact for UTF-8)
+        CharBuffer output = CharBuffer.allocate((int) Math.ceil(length * (double) decoder.maxCharsPerByte()));
+        ByteBuffer input = ByteBuffer.wrap(data, 0, length);
+
+        CoderResult result = decoder.decode(input, output, true);
+        if (result.isError()) result.throwException();
+        result = decoder.flush(output);
+        if (result.isError()) result.throwException();
+
+        output.flip();
+        return output.toString();
+
+    }
+
+}
@@ -0,0 +1,143 @@
+package ceramic.support.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket limiting how many bytes per second are read from response bodies.
+ * A request can have its own bucket (`maxBytesPerSecond` param), every request goes through
+ * the global one, and background priority requests also go through a stricter one while
+ * foreground requests are running, so that they yield bandwidth to them.
+ * A rate of 0 means unlimited.
+ */
+public class HttpThrottle {
+
+    private static final HttpThrottle sGlobal = new HttpThrottle(0);
+
+    private static final HttpThrottle sBackground = new HttpThrottle(0);
+
+    /** Set the maximum rate of all requests combined, in bytes per second. 0 for unlimited. */
+    public static void setMaxBytesPerSecond(long bytesPerSecond) {
+        sGlobal.setBytesPerSecond(bytesPerSecond);
+    }
+
+    public static long getMaxBytesPerSecond() {
+        return sGlobal.getBytesPerSecond();
+    }
+
+    /**
+     * Set the maximum rate of background priority requests combined, in bytes per second,
+     * applied only while normal or critical requests are running. 0 to never slow them down.
+     */
+    public static void setBackgroundBytesPerSecond(long bytesPerSecond) {
+        sBackground.setBytesPerSecond(bytesPerSecond);
+    }
+
+    public static long getBackgroundBytesPerSecond() {
+        return sBackground.getBytesPerSecond();
+    }
+
+    /**
+     * Wrap a response stream so that its reads respect the global rate, `throttle` rate if any,
+     * and background rate when `background` is `true`.
+     */
+    public static InputStream wrap(InputStream is, final HttpThrottle throttle, final boolean background) {
+
+        return new FilterInputStream(is) {
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    consume(1, throttle, background);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                // Read at most one burst at a time, so that waits stay short and regular
+                int burst = sGlobal.burst();
+                if (throttle != null) burst = Math.min(burst, throttle.burst());
+                if (background) burst = Math.min(burst, sBackground.burst());
+                int nRead = super.read(buffer, offset, Math.min(length, burst));
+                if (nRead > 0) {
+                    consume(nRead, throttle, background);
+                }
+                return nRead;
+            }
+
+        };
+
+    }
+
+    private static void consume(int count, HttpThrottle throttle, boolean background) throws IOException {
+
+        long wait = sGlobal.reserve(count);
+        if (throttle != null) {
+            wait = Math.max(wait, throttle.reserve(count));
+        }
+        if (background && sBackground.getBytesPerSecond() > 0 && HttpDispatcher.shared().isForegroundActive()) {
+            wait = Math.max(wait, sBackground.reserve(count));
+        }
+
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+
+    }
+
+    private long mBytesPerSecond;
+    private double mTokens = 0;
+    private long mLastTime = 0;
+
+    public HttpThrottle(long bytesPerSecond) {
+
+        setBytesPerSecond(bytesPerSecond);
+
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+
+        mBytesPerSecond = Math.max(0, bytesPerSecond);
+        mTokens = 0;
+        mLastTime = System.nanoTime();
+
+    }
+
+    /** Bytes that can be read at once after being idle: a tenth of a second worth of bytes */
+    synchronized int burst() {
+
+        if (mBytesPerSecond <= 0) return Integer.MAX_VALUE;
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1024, mBytesPerSecond / 10));
+
+    }
+
+    /**
+     * Take `count` bytes from the bucket, which may leave it in debt.
+     * @return nanoseconds to wait until the debt is paid back
+     */
+    synchronized long reserve(int count) {
+
+        if (mBytesPerSecond <= 0) return 0;
+
+        long now = System.nanoTime();
+        mTokens = Math.min(burst(), mTokens + (now - mLastTime) * mBytesPerSecond / 1e9);
+        mLastTime = now;
+
+        mTokens -= count;
+        return mTokens >= 0 ? 0 : (long) (-mTokens * 1e9 / mBytesPerSecond);
+
+    }
+
+}
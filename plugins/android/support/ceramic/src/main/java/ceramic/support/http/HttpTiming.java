@@ -0,0 +1,162 @@
+package ceramic.support.http;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Timestamps and byte counts of a single request, from the moment it is queued
+ * to the moment its result is delivered. When the request is retried, phases are those of its last attempt. A phase that didn't happen
+ * (like connect when served from cache) is reported as -1.
+ */
+public class HttpTiming {
+
+    /** Wall clock time (ms since epoch) at which the request was queued */
+    private long mStartTime = 0;
+
+    private long mQueuedAt = 0;
+    private long mStartedAt = 0;
+    private long mConnectStartAt = 0;
+    private long mConnectEndAt = 0;
+    private long mRequestSentAt = 0;
+    private long mHeadersAt = 0;
+    private long mFinishedAt = 0;
+
+    private volatile long mBytesIn = 0;
+    private long mBytesOut = 0;
+    private int mRetries = 0;
+
+    void queued() {
+        mStartTime = System.currentTimeMillis();
+        mQueuedAt = System.nanoTime();
+    }
+
+    /** Start of an attempt. Everything but queue time and retry count is about the last attempt only. */
+    void started() {
+        mStartedAt = System.nanoTime();
+        mConnectStartAt = 0;
+        mConnectEndAt = 0;
+        mRequestSentAt = 0;
+        mHeadersAt = 0;
+        mFinishedAt = 0;
+        mBytesIn = 0;
+        mBytesOut = 0;
+    }
+
+    void connectStart() {
+        mConnectStartAt = System.nanoTime();
+    }
+
+    void connectEnd() {
+        mConnectEndAt = System.nanoTime();
+    }
+
+    void requestSent() {
+        mRequestSentAt = System.nanoTime();
+    }
+
+    void headersReceived() {
+        mHeadersAt = System.nanoTime();
+    }
+
+    void finished() {
+        mFinishedAt = System.nanoTime();
+    }
+
+    void addBytesIn(long bytes) {
+        mBytesIn += bytes;
+    }
+
+    void addBytesOut(long bytes) {
+        mBytesOut += bytes;
+    }
+
+    void retried() {
+        mRetries++;
+    }
+
+    /** Wrap a response stream so that bytes read from it are counted as received */
+    InputStream countIn(InputStream is) {
+
+        return new FilterInputStream(is) {
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) mBytesIn++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int nRead = super.read(buffer, offset, length);
+                if (nRead > 0) mBytesIn += nRead;
+                return nRead;
+            }
+
+        };
+
+    }
+
+    /** Time spent waiting in dispatcher queue, in milliseconds */
+    public double queueTime() {
+        return duration(mQueuedAt, mStartedAt);
+    }
+
+    /** DNS lookup, TCP and TLS handshakes, close to zero when a kept alive connection is reused */
+    public double connectTime() {
+        return duration(mConnectStartAt, mConnectEndAt);
+    }
+
+    /** Server time to first byte, from request sent to response headers received */
+    public double ttfbTime() {
+        return duration(mRequestSentAt != 0 ? mRequestSentAt : mConnectEndAt, mHeadersAt);
+    }
+
+    /** Response body transfer */
+    public double transferTime() {
+        return duration(mHeadersAt, mFinishedAt);
+    }
+
+    public double totalTime() {
+        return duration(mQueuedAt, mFinishedAt);
+    }
+
+    public long getBytesIn() {
+        return mBytesIn;
+    }
+
+    public long getBytesOut() {
+        return mBytesOut;
+    }
+
+    public int getRetries() {
+        return mRetries;
+    }
+
+    public Map<String,Object> toMap() {
+
+        Map<String,Object> map = new HashMap<>();
+        map.put("startTime", mStartTime);
+        map.put("queue", queueTime());
+        map.put("connect", connectTime());
+        map.put("ttfb", ttfbTime());
+        map.put("transfer", transferTime());
+        map.put("total", totalTime());
+        map.put("bytesIn", mBytesIn);
+        map.put("bytesOut", mBytesOut);
+        map.put("retries", mRetries);
+        return map;
+
+    }
+
+    private static double duration(long start, long end) {
+
+        if (start == 0 || end == 0) return -1;
+        return Math.round((end - start) / 10000.0) / 100.0;
+
+    }
+
+}
@@ -0,0 +1,113 @@
+package ceramic.support.http;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts a zip archive while it is being downloaded, so that the archive itself
+ * is never written to disk. Entries are only allowed inside the target directory.
+ */
+public class HttpUnzip {
+
+    /**
+     * Extract every entry of the zip stream into `directory`, then close the stream.
+     * @param digest    if not `null`, updated with the archive bytes
+     * @param progress  if not `null`, updated with the archive bytes read
+     */
+    public static void extract(InputStream is, File directory, final HttpDigest digest, final HttpProgress progress) throws IOException {
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+        String rootPath = directory.getCanonicalPath() + File.separator;
+
+        InputStream archive = new FilterInputStream(is) {
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    if (digest != null) digest.update(new byte[] { (byte) b }, 0, 1);
+                    if (progress != null) progress.add(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int nRead = super.read(buffer, offset, length);
+                if (nRead > 0) {
+                    if (digest != null) digest.update(buffer, offset, nRead);
+                    if (progress != null) progress.add(nRead);
+                }
+                return nRead;
+            }
+
+        };
+
+        ZipInputStream zip = new ZipInputStream(archive);
+        byte[] buffer = HttpBufferPool.acquire();
+        try {
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                File target = new File(directory, entry.getName());
+                if (!target.getCanonicalPath().startsWith(rootPath)) {
+                    throw new IOException("Zip entry is outside of target directory: " + entry.getName());
+                }
+
+                if (entry.isDirectory()) {
+                    target.mkdirs();
+                }
+                else {
+                    File parent = target.getParentFile();
+                    if (!parent.exists()) {
+                        parent.mkdirs();
+                    }
+                    FileOutputStream output = new FileOutputStream(target);
+                    try {
+                        int nRead;
+                        while ((nRead = zip.read(buffer)) != -1) {
+                            output.write(buffer, 0, nRead);
+                        }
+                    }
+                    finally {
+                        output.close();
+                    }
+                }
+                if (entry.getTime() != -1) {
+                    target.setLastModified(entry.getTime());
+                }
+                zip.closeEntry();
+            }
+
+            // Read the central directory too, so that the digest covers the whole archive
+            while (archive.read(buffer) != -1) {}
+        }
+        finally {
+            HttpBufferPool.release(buffer);
+            zip.close();
+        }
+
+        if (progress != null) progress.finish();
+
+    }
+
+    /** Delete a file, or a directory and everything inside it */
+    public static void deleteRecursively(File file) {
+
+        File[] children = file.isDirectory() ? file.listFiles() : null;
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+
+    }
+
+}
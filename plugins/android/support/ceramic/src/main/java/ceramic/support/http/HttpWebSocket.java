@@ -0,0 +1,840 @@
+package ceramic.support.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CodingErrorAction;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * WebSocket client (RFC 6455) over a plain or TLS socket. Messages to send wait in a bounded
+ * queue written by a dedicated thread, so sending never blocks and fails instead when the queue
+ * is full. Received messages are given to the listener in batches: every message that arrived
+ * along with the first one is delivered in the same call. The connection is kept alive with
+ * pings, and closed if the server stops answering them.
+ */
+public class HttpWebSocket {
+
+    public interface Listener {
+
+        /** Handshake succeeded. `headers` is a flat list: [key, value, key, value, ...] */
+        void onOpen(HttpWebSocket webSocket, List<String> headers);
+
+        /** Messages received together, in order */
+        void onMessages(HttpWebSocket webSocket, List<Message> messages);
+
+        /** Called once, last. `error` is `null` if the connection was closed cleanly. */
+        void onClose(HttpWebSocket webSocket, int code, String reason, String error);
+
+    }
+
+    /** A text or binary message */
+    public static class Message {
+
+        public String text;
+
+        public byte[] data;
+
+        public boolean isBinary() {
+            return data != null;
+        }
+
+    }
+
+    public static final long DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
+    public static final long DEFAULT_PING_INTERVAL = 20000;
+
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    public static final int CLOSE_NORMAL = 1000;
+    public static final int CLOSE_PROTOCOL_ERROR = 1002;
+    public static final int CLOSE_NO_STATUS = 1005;
+    public static final int CLOSE_ABNORMAL = 1006;
+    public static final int CLOSE_INVALID_DATA = 1007;
+    public static final int CLOSE_TOO_BIG = 1009;
+
+    static final int OPCODE_CONTINUATION = 0x0;
+    static final int OPCODE_TEXT = 0x1;
+    static final int OPCODE_BINARY = 0x2;
+    static final int OPCODE_CLOSE = 0x8;
+    static final int OPCODE_PING = 0x9;
+    static final int OPCODE_PONG = 0xA;
+
+    private static final int STATE_CONNECTING = 0;
+    private static final int STATE_OPEN = 1;
+    private static final int STATE_CLOSING = 2;
+    private static final int STATE_CLOSED = 3;
+
+    /** Most messages given to the listener in a single call */
+    private static final int MAX_BATCH = 256;
+
+    /** Time given to the server to answer a close frame before the socket is closed anyway */
+    private static final long CLOSE_TIMEOUT = 5000;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final AtomicInteger sNextId = new AtomicInteger(1);
+
+    private static final SecureRandom sRandom = new SecureRandom();
+
+    /** A frame waiting to be written */
+    private static class Frame {
+
+        final int opcode;
+
+        final byte[] payload;
+
+        Frame(int opcode, byte[] payload) {
+            this.opcode = opcode;
+            this.payload = payload;
+        }
+
+    }
+
+    /** Error that must be reported to the server with a specific close code */
+    private static class CloseException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        CloseException(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+
+    }
+
+    private final int mId;
+    private final URI mUri;
+    private final List<String> mHeaders;
+    private final List<String> mProtocols;
+    private final Listener mListener;
+
+    private int mTimeout = 10000;
+    private long mPingInterval = DEFAULT_PING_INTERVAL;
+    private long mMaxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private int mMaxMessageSize = DEFAULT_MAX_MESSAGE_SIZE;
+
+    // Guarded by this
+    private int mState = STATE_CONNECTING;
+    private final ArrayDeque<Frame> mQueue = new ArrayDeque<>();
+    private final ArrayDeque<Frame> mControlQueue = new ArrayDeque<>();
+    private long mQueuedBytes = 0;
+    private int mCloseCode = 0;
+    private String mCloseReason = null;
+    private String mCloseError = null;
+    private long mPingSentAt = 0;
+
+    // Guarded by mWriteLock
+    private final Object mWriteLock = new Object();
+    private OutputStream mOutput = null;
+    private boolean mCloseSent = false;
+
+    private volatile Socket mSocket = null;
+    private volatile long mLastReceived = 0;
+    private volatile String mProtocol = null;
+    private List<String> mResponseHeaders = null;
+
+    /**
+     * @param url        `ws://` or `wss://` URL (`http://` and `https://` work too)
+     * @param headers    additional handshake headers as a flat list: [key, value, key, value, ...], can be null
+     * @param protocols  subprotocols offered to the server, can be null
+     */
+    public HttpWebSocket(String url, List<String> headers, List<String> protocols, Listener listener) {
+
+        mId = sNextId.getAndIncrement();
+        mUri = URI.create(url);
+        mHeaders = headers;
+        mProtocols = protocols;
+        mListener = listener;
+
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    /** Connect and handshake timeout, in milliseconds */
+    public HttpWebSocket setTimeout(int timeout) {
+        mTimeout = timeout;
+        return this;
+    }
+
+    /** Interval between two pings, in milliseconds. The connection fails if nothing was received since last ping. 0 to disable. */
+    public HttpWebSocket setPingInterval(long pingInterval) {
+        mPingInterval = pingInterval;
+        return this;
+    }
+
+    /** Largest amount of bytes waiting to be sent. Messages that don't fit are rejected. */
+    public HttpWebSocket setMaxQueuedBytes(long maxQueuedBytes) {
+        mMaxQueuedBytes = maxQueuedBytes;
+        return this;
+    }
+
+    /** Largest message accepted from the server, bigger ones close the connection */
+    public HttpWebSocket setMaxMessageSize(int maxMessageSize) {
+        mMaxMessageSize = maxMessageSize;
+        return this;
+    }
+
+    /** Subprotocol chosen by the server, if any */
+    public String getProtocol() {
+        return mProtocol;
+    }
+
+    /** Bytes of messages waiting to be sent */
+    public synchronized long getQueuedBytes() {
+        return mQueuedBytes;
+    }
+
+    /** Connect from a new thread, which then reads and delivers messages until the connection is closed */
+    public HttpWebSocket connect() {
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readLoop();
+            }
+        }, "CeramicWebSocket-" + mId);
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+
+    }
+
+    /**
+     * Queue a text message. Messages sent before the connection is open are sent once it is.
+     * @return `false` if the connection is closing or if the send queue is full
+     */
+    public boolean sendText(String text) {
+
+        return send(new Frame(OPCODE_TEXT, text.getBytes(UTF8)));
+
+    }
+
+    /**
+     * Queue a binary message.
+     * @return `false` if the connection is closing or if the send queue is full
+     */
+    public boolean sendBinary(byte[] data) {
+
+        return send(new Frame(OPCODE_BINARY, data));
+
+    }
+
+    /** Start the closing handshake, once queued messages are sent */
+    public void close(int code, String reason) {
+
+        Socket socket = null;
+        synchronized (this) {
+            if (mState == STATE_CONNECTING) {
+                // Nothing to send yet, just stop connecting
+                recordClose(code, reason, null);
+                socket = mSocket;
+            }
+            else if (mState == STATE_OPEN) {
+                mState = STATE_CLOSING;
+                mQueue.add(new Frame(OPCODE_CLOSE, closePayload(code, reason)));
+                notifyAll();
+            }
+        }
+        closeQuietly(socket);
+
+    }
+
+    private synchronized boolean send(Frame frame) {
+
+        if (mState != STATE_CONNECTING && mState != STATE_OPEN) return false;
+        if (mQueuedBytes + frame.payload.length > mMaxQueuedBytes) return false;
+
+        mQueue.add(frame);
+        mQueuedBytes += frame.payload.length;
+        notifyAll();
+        return true;
+
+    }
+
+/// Reader thread
+
+    private void readLoop() {
+
+        List<Message> batch = new ArrayList<>();
+        try {
+            InputStream input = open();
+
+            synchronized (this) {
+                if (mState != STATE_CONNECTING) {
+                    throw new IOException("Closed while connecting");
+                }
+                mState = STATE_OPEN;
+            }
+
+            Thread writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            }, "CeramicWebSocketWriter-" + mId);
+            writer.setDaemon(true);
+            writer.start();
+
+            mListener.onOpen(this, mResponseHeaders);
+
+            ByteArrayOutputStream fragments = null;
+            int fragmentsOpcode = 0;
+            boolean closed = false;
+
+            while (!closed) {
+                int b0 = input.read();
+                if (b0 == -1) {
+                    throw new EOFException("Connection closed by server");
+                }
+                int b1 = readByte(input);
+                boolean fin = (b0 & 0x80) != 0;
+                int opcode = b0 & 0x0F;
+
+                if ((b0 & 0x70) != 0) {
+                    throw new CloseException(CLOSE_PROTOCOL_ERROR, "Unexpected reserved bits");
+                }
+                if ((b1 & 0x80) != 0) {
+                    throw new CloseException(CLOSE_PROTOCOL_ERROR, "Masked frame from server");
+                }
+
+                long length = b1 & 0x7F;
+                if (length == 126) {
+                    length = (readByte(input) << 8) | readByte(input);
+                }
+                else if (length == 127) {
+                    length = 0;
+                    for (int i = 0; i < 8; i++) {
+                        length = (length << 8) | readByte(input);
+                    }
+                    if (length < 0) {
+                        throw new CloseException(CLOSE_PROTOCOL_ERROR, "Invalid frame length");
+                    }
+                }
+
+                if (opcode >= OPCODE_CLOSE && (!fin || length > 125)) {
+                    throw new CloseException(CLOSE_PROTOCOL_ERROR, "Invalid control frame");
+                }
+                long messageSize = length + (fragments != null ? fragments.size() : 0);
+                if (messageSize > mMaxMessageSize) {
+                    throw new CloseException(CLOSE_TOO_BIG, "Message is larger than " + mMaxMessageSize + " bytes");
+                }
+
+                byte[] payload = readFully(input, (int) length);
+                mLastReceived = System.currentTimeMillis();
+
+                Message message = null;
+                switch (opcode) {
+                    case OPCODE_PING:
+                        synchronized (this) {
+                            mControlQueue.add(new Frame(OPCODE_PONG, payload));
+                            notifyAll();
+                        }
+                        break;
+                    case OPCODE_PONG:
+                        break;
+                    case OPCODE_CLOSE:
+                        int code = CLOSE_NO_STATUS;
+                        String reason = "";
+                        if (payload.length >= 2) {
+                            code = ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+                            reason = decodeText(payload, 2, payload.length - 2);
+                        }
+                        // Answer with the same code, unless we started the closing handshake
+                        sendClose(code == CLOSE_NO_STATUS ? new byte[0] : closePayload(code, ""));
+                        recordClose(code, reason, null);
+                        closed = true;
+                        break;
+                    case OPCODE_TEXT:
+                    case OPCODE_BINARY:
+                        if (fragments != null) {
+                            throw new CloseException(CLOSE_PROTOCOL_ERROR, "Expected continuation frame");
+                        }
+                        if (fin) {
+                            message = toMessage(opcode, payload, payload.length);
+                        }
+                        else {
+                            fragments = new ByteArrayOutputStream();
+                            fragments.write(payload);
+                            fragmentsOpcode = opcode;
+                        }
+                        break;
+                    case OPCODE_CONTINUATION:
+                        if (fragments == null) {
+                            throw new CloseException(CLOSE_PROTOCOL_ERROR, "Unexpected continuation frame");
+                        }
+                        fragments.write(payload);
+                        if (fin) {
+                            message = toMessage(fragmentsOpcode, fragments.toByteArray(), fragments.size());
+                            fragments = null;
+                        }
+                        break;
+                    default:
+                        throw new CloseException(CLOSE_PROTOCOL_ERROR, "Unknown opcode " + opcode);
+                }
+
+                if (message != null) {
+                    batch.add(message);
+                    // Deliver once every message that arrived together was read
+                    if (batch.size() >= MAX_BATCH || input.available() == 0) {
+                        mListener.onMessages(this, batch);
+                        batch = new ArrayList<>();
+                    }
+                }
+            }
+
+        } catch (Throwable e) {
+            if (e instanceof CloseException) {
+                try {
+                    sendClose(closePayload(((CloseException) e).code, e.getMessage()));
+                } catch (Throwable ee) {
+                    // Connection is lost anyway
+                }
+                recordClose(((CloseException) e).code, e.getMessage(), e.getMessage());
+            }
+            else {
+                recordClose(CLOSE_ABNORMAL, "", e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+        } finally {
+            closeQuietly(mSocket);
+        }
+
+        if (!batch.isEmpty()) {
+            mListener.onMessages(this, batch);
+        }
+
+        int code;
+        String reason;
+        String error;
+        synchronized (this) {
+            code = mCloseCode;
+            reason = mCloseReason;
+            error = mCloseError;
+        }
+        mListener.onClose(this, code, reason, error);
+
+    }
+
+    /** Open the socket and do the opening handshake */
+    private InputStream open() throws IOException {
+
+        boolean secure = "wss".equalsIgnoreCase(mUri.getScheme()) || "https".equalsIgnoreCase(mUri.getScheme());
+        String host = mUri.getHost();
+        if (host == null) {
+            throw new IOException("Invalid WebSocket URL: " + mUri);
+        }
+        int port = mUri.getPort() != -1 ? mUri.getPort() : secure ? 443 : 80;
+        String socketHost = host.startsWith("[") ? host.substring(1, host.length() - 1) : host;
+
+        Socket socket = new Socket();
+        mSocket = socket;
+        synchronized (this) {
+            if (mState != STATE_CONNECTING) {
+                throw new IOException("Closed while connecting");
+            }
+        }
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(mTimeout);
+        socket.connect(new InetSocketAddress(socketHost, port), mTimeout);
+
+        if (secure) {
+            SSLSocket sslSocket = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(socket, socketHost, port, true);
+            mSocket = sslSocket;
+            sslSocket.startHandshake();
+            if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(socketHost, sslSocket.getSession())) {
+                throw new SSLPeerUnverifiedException("Hostname " + socketHost + " not verified");
+            }
+            socket = sslSocket;
+        }
+
+        byte[] nonce = new byte[16];
+        sRandom.nextBytes(nonce);
+        String key = base64(nonce);
+
+        String path = mUri.getRawPath() != null && mUri.getRawPath().length() > 0 ? mUri.getRawPath() : "/";
+        if (mUri.getRawQuery() != null) {
+            path += "?" + mUri.getRawQuery();
+        }
+
+        StringBuilder request = new StringBuilder();
+        request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(host);
+        if (mUri.getPort() != -1) {
+            request.append(':').append(port);
+        }
+        request.append("\r\n");
+        request.append("Upgrade: websocket\r\n");
+        request.append("Connection: Upgrade\r\n");
+        request.append("Sec-WebSocket-Key: ").append(key).append("\r\n");
+        request.append("Sec-WebSocket-Version: 13\r\n");
+        if (mProtocols != null && !mProtocols.isEmpty()) {
+            request.append("Sec-WebSocket-Protocol: ");
+            for (int i = 0; i < mProtocols.size(); i++) {
+                if (i > 0) request.append(", ");
+                request.append(mProtocols.get(i));
+            }
+            request.append("\r\n");
+        }
+        String userAgent = System.getProperty("http.agent");
+        if (userAgent != null) {
+            request.append("User-Agent: ").append(userAgent).append("\r\n");
+        }
+        if (mHeaders != null) {
+            for (int i = 0; i + 1 < mHeaders.size(); i += 2) {
+                if (mHeaders.get(i + 1) != null) {
+                    request.append(mHeaders.get(i)).append(": ").append(mHeaders.get(i + 1)).append("\r\n");
+                }
+            }
+        }
+        request.append("\r\n");
+
+        OutputStream output = socket.getOutputStream();
+        output.write(request.toString().getBytes(UTF8));
+        output.flush();
+        synchronized (mWriteLock) {
+            mOutput = output;
+        }
+
+        InputStream input = new BufferedInputStream(socket.getInputStream(), 16384);
+        String statusLine = readLine(input);
+        List<String> headers = new ArrayList<>();
+        String accept = null;
+        String upgrade = null;
+        String line;
+        while ((line = readLine(input)).length() > 0) {
+            int colonIndex = line.indexOf(':');
+            if (colonIndex == -1) continue;
+            String name = line.substring(0, colonIndex).trim();
+            String value = line.substring(colonIndex + 1).trim();
+            headers.add(name);
+            headers.add(value);
+            if (name.equalsIgnoreCase("Sec-WebSocket-Accept")) {
+                accept = value;
+            }
+            else if (name.equalsIgnoreCase("Upgrade")) {
+                upgrade = value;
+            }
+            else if (name.equalsIgnoreCase("Sec-WebSocket-Protocol")) {
+                mProtocol = value;
+            }
+        }
+
+        String[] status = statusLine.split(" ", 3);
+        if (status.length < 2 || !status[1].equals("101")) {
+            throw new IOException("Unexpected handshake response: " + statusLine);
+        }
+        if (upgrade == null || !upgrade.equalsIgnoreCase("websocket")) {
+            throw new IOException("Missing Upgrade header in handshake response");
+        }
+        if (!acceptKey(key).equals(accept)) {
+            throw new IOException("Invalid Sec-WebSocket-Accept header in handshake response");
+        }
+
+        // Handshake timeout doesn't apply to messages, pings detect dead connections instead
+        socket.setSoTimeout(0);
+        mLastReceived = System.currentTimeMillis();
+
+        mResponseHeaders = headers;
+        return input;
+
+    }
+
+    private Message toMessage(int opcode, byte[] payload, int length) throws IOException {
+
+        Message message = new Message();
+        if (opcode == OPCODE_TEXT) {
+            message.text = decodeText(payload, 0, length);
+        }
+        else {
+            message.data = payload;
+        }
+        return message;
+
+    }
+
+/// Writer thread
+
+    private void writeLoop() {
+
+        long nextPing = System.currentTimeMillis() + mPingInterval;
+        try {
+            while (true) {
+                Frame frame = null;
+                boolean timedOut = false;
+                synchronized (this) {
+                    while (frame == null && !timedOut) {
+                        if (mState == STATE_CLOSED) return;
+
+                        if (!mControlQueue.isEmpty()) {
+                            frame = mControlQueue.poll();
+                        }
+                        else if (!mQueue.isEmpty()) {
+                            frame = mQueue.poll();
+                            if (frame.opcode != OPCODE_CLOSE) {
+                                mQueuedBytes -= frame.payload.length;
+                            }
+                        }
+                        else {
+                            long now = System.currentTimeMillis();
+                            if (mPingInterval > 0 && now >= nextPing) {
+                                if (mPingSentAt > 0 && mLastReceived < mPingSentAt) {
+                                    // Nothing received since last ping
+                                    timedOut = true;
+                                }
+                                else {
+                                    frame = new Frame(OPCODE_PING, new byte[0]);
+                                    mPingSentAt = now;
+                                    nextPing = now + mPingInterval;
+                                }
+                            }
+                            else {
+                                wait(mPingInterval > 0 ? nextPing - now : 0);
+                            }
+                        }
+                    }
+                }
+
+                if (timedOut) {
+                    fail(CLOSE_ABNORMAL, "Ping timeout");
+                    return;
+                }
+
+                if (frame.opcode == OPCODE_CLOSE) {
+                    sendClose(frame.payload);
+                    awaitClosed();
+                    return;
+                }
+
+                synchronized (mWriteLock) {
+                    if (mCloseSent) return;
+                    writeFrame(mOutput, frame.opcode, frame.payload);
+                }
+            }
+        } catch (Throwable e) {
+            fail(CLOSE_ABNORMAL, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+
+    }
+
+    /** Give the server some time to answer our close frame, then close the socket anyway */
+    private void awaitClosed() throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        synchronized (this) {
+            long now;
+            while (mState != STATE_CLOSED && (now = System.currentTimeMillis()) < deadline) {
+                wait(deadline - now);
+            }
+            if (mState == STATE_CLOSED) return;
+        }
+        fail(CLOSE_ABNORMAL, "Close timeout");
+
+    }
+
+    /** Send a close frame, unless one was already sent */
+    private void sendClose(byte[] payload) throws IOException {
+
+        synchronized (mWriteLock) {
+            if (mCloseSent || mOutput == null) return;
+            mCloseSent = true;
+            writeFrame(mOutput, OPCODE_CLOSE, payload);
+        }
+
+    }
+
+    private void fail(int code, String error) {
+
+        recordClose(code, "", error);
+        closeQuietly(mSocket);
+
+    }
+
+    /** Keep the first close status, which is the one given to the listener */
+    private synchronized void recordClose(int code, String reason, String error) {
+
+        if (mState == STATE_CLOSED) return;
+        mState = STATE_CLOSED;
+        mCloseCode = code;
+        mCloseReason = reason;
+        mCloseError = error;
+        mQueue.clear();
+        mControlQueue.clear();
+        mQueuedBytes = 0;
+        notifyAll();
+
+    }
+
+/// Frames
+
+    /** Write a masked frame with a single call, so that small frames go out in a single packet */
+    static void writeFrame(OutputStream output, int opcode, byte[] payload) throws IOException {
+
+        int length = payload.length;
+        int headerLength = 2 + (length > 0xFFFF ? 8 : length > 125 ? 2 : 0) + 4;
+        byte[] frame = new byte[headerLength + length];
+
+        frame[0] = (byte) (0x80 | opcode);
+        int offset = 2;
+        if (length > 0xFFFF) {
+            frame[1] = (byte) (0x80 | 127);
+            for (int i = 7; i >= 0; i--) {
+                frame[offset++] = (byte) ((long) length >>> (8 * i));
+            }
+        }
+        else if (length > 125) {
+            frame[1] = (byte) (0x80 | 126);
+            frame[offset++] = (byte) (length >>> 8);
+            frame[offset++] = (byte) length;
+        }
+        else {
+            frame[1] = (byte) (0x80 | length);
+        }
+
+        byte[] mask = new byte[4];
+        sRandom.nextBytes(mask);
+        System.arraycopy(mask, 0, frame, offset, 4);
+        offset += 4;
+        for (int i = 0; i < length; i++) {
+            frame[offset + i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+
+        output.write(frame);
+        output.flush();
+
+    }
+
+    private static byte[] closePayload(int code, String reason) {
+
+        byte[] reasonBytes = reason != null ? reason.getBytes(UTF8) : new byte[0];
+        // Control frame payloads are limited to 125 bytes
+        int reasonLength = Math.min(reasonBytes.length, 123);
+        byte[] payload = new byte[2 + reasonLength];
+        payload[0] = (byte) (code >>> 8);
+        payload[1] = (byte) code;
+        System.arraycopy(reasonBytes, 0, payload, 2, reasonLength);
+        return payload;
+
+    }
+
+    private static String decodeText(byte[] data, int offset, int length) throws IOException {
+
+        try {
+            return UTF8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT)
+                .decode(ByteBuffer.wrap(data, offset, length))
+                .toString();
+        } catch (CharacterCodingException e) {
+            throw new CloseException(CLOSE_INVALID_DATA, "Invalid UTF-8 text");
+        }
+
+    }
+
+    private static int readByte(InputStream input) throws IOException {
+
+        int b = input.read();
+        if (b == -1) {
+            throw new EOFException("Connection closed by server");
+        }
+        return b;
+
+    }
+
+    private static byte[] readFully(InputStream input, int length) throws IOException {
+
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int nRead = input.read(data, offset, length - offset);
+            if (nRead == -1) {
+                throw new EOFException("Connection closed by server");
+            }
+            offset += nRead;
+        }
+        return data;
+
+    }
+
+    /** Read a handshake line, without its CRLF */
+    private static String readLine(InputStream input) throws IOException {
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = readByte(input)) != '\n') {
+            if (b != '\r') line.write(b);
+            if (line.size() > 8192) {
+                throw new IOException("Handshake response line is too long");
+            }
+        }
+        return new String(line.toByteArray(), UTF8);
+
+    }
+
+    static String acceptKey(String key) throws IOException {
+
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + ACCEPT_GUID).getBytes(UTF8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+    }
+
+    /** Standard base64 with padding, as android.util.Base64 isn't available in unit tests */
+    private static String base64(byte[] data) {
+
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder result = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int b = (data[i] & 0xFF) << 16;
+            if (i + 1 < data.length) b |= (data[i + 1] & 0xFF) << 8;
+            if (i + 2 < data.length) b |= data[i + 2] & 0xFF;
+            result.append(alphabet.charAt((b >> 18) & 0x3F));
+            result.append(alphabet.charAt((b >> 12) & 0x3F));
+            result.append(i + 1 < data.length ? alphabet.charAt((b >> 6) & 0x3F) : '=');
+            result.append(i + 2 < data.length ? alphabet.charAt(b & 0x3F) : '=');
+        }
+        return result.toString();
+
+    }
+
+    private static void closeQuietly(Socket socket) {
+
+        if (socket == null) return;
+        try {
+            socket.close();
+        } catch (Throwable e) {
+            // Already closed
+        }
+
+    }
+
+}
@@ -0,0 +1,125 @@
+package ceramic.support.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Merging of identical requests against a local HTTP server that fails the first
+ * two requests it receives with a 503, and serves a small file afterwards.
+ */
+public class HttpDispatcherTest {
+
+    private static final byte[] BODY = "file content".getBytes();
+
+    private HttpServer mServer;
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final CountDownLatch mFirstHits = new CountDownLatch(2);
+
+    @Before
+    public void setUp() throws IOException {
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/flaky", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int hit = mHits.incrementAndGet();
+                if (hit <= 2) {
+                    // Keep first responses pending, so that a merged request would join while in flight
+                    mFirstHits.countDown();
+                    try {
+                        mFirstHits.await(2, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        // Answer right away
+                    }
+                    exchange.sendResponseHeaders(503, -1);
+                }
+                else {
+                    exchange.sendResponseHeaders(200, BODY.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(BODY);
+                    os.close();
+                }
+                exchange.close();
+            }
+        });
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+
+    }
+
+    @After
+    public void tearDown() {
+
+        mServer.stop(0);
+
+    }
+
+    @Test
+    public void retryingRequestIsNotMergedIntoNonRetryingOne() throws Exception {
+
+        File file = File.createTempFile("dispatcher", ".bin");
+        file.delete();
+        try {
+            Map<String,Object> retry = new HashMap<>();
+            retry.put("maxAttempts", 2);
+            retry.put("baseDelay", 10);
+            Map<String,Object> retryParams = params();
+            retryParams.put("retry", retry);
+
+            Recorder leader = new Recorder();
+            Recorder follower = new Recorder();
+            new HttpRequest(params(), file.getAbsolutePath(), leader).execute();
+            new HttpRequest(retryParams, file.getAbsolutePath(), follower).execute();
+
+            assertTrue(leader.done.await(5, TimeUnit.SECONDS));
+            assertTrue(follower.done.await(5, TimeUnit.SECONDS));
+            assertEquals(503, leader.result.statusCode);
+            assertEquals(200, follower.result.statusCode);
+            assertEquals(3, mHits.get());
+        }
+        finally {
+            file.delete();
+        }
+
+    }
+
+    private Map<String,Object> params() {
+
+        Map<String,Object> params = new HashMap<>();
+        params.put("url", "http://127.0.0.1:" + mServer.getAddress().getPort() + "/flaky");
+        return params;
+
+    }
+
+    private static class Recorder implements HttpRequest.Listener {
+
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile HttpResult result;
+
+        @Override
+        public void onComplete(HttpResult result) {
+            this.result = result;
+            done.countDown();
+        }
+
+    }
+
+}
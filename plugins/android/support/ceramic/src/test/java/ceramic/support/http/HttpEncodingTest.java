@@ -0,0 +1,157 @@
+package ceramic.support.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Response decoding against a local HTTP server that always answers with `Content-Encoding: gzip`,
+ * including responses that have no body.
+ */
+public class HttpEncodingTest {
+
+    private static final String TEXT = "compressed body";
+
+    private HttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = gzip(TEXT.getBytes("UTF-8"));
+                String path = exchange.getRequestURI().getPath();
+                exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+                if (path.equals("/204")) {
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                else if (path.equals("/304")) {
+                    exchange.sendResponseHeaders(304, -1);
+                }
+                else if (path.equals("/empty")) {
+                    // Sent with `Content-Length: 0`
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                else if (exchange.getRequestMethod().equals("HEAD")) {
+                    exchange.getResponseHeaders().add("Content-Length", "" + body.length);
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                else {
+                    exchange.sendResponseHeaders(200, body.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                }
+                exchange.close();
+            }
+        });
+        mServer.start();
+
+    }
+
+    @After
+    public void tearDown() {
+
+        mServer.stop(0);
+
+    }
+
+    @Test
+    public void decodesCompressedBody() throws IOException {
+
+        assertEquals(TEXT, fetch("GET", "/"));
+
+    }
+
+    @Test
+    public void skipsHeadResponse() throws IOException {
+
+        assertEquals("", fetch("HEAD", "/"));
+
+    }
+
+    @Test
+    public void skipsNoContentResponse() throws IOException {
+
+        assertEquals("", fetch("GET", "/204"));
+
+    }
+
+    @Test
+    public void skipsNotModifiedResponse() throws IOException {
+
+        assertEquals("", fetch("GET", "/304"));
+
+    }
+
+    @Test
+    public void skipsZeroContentLengthResponse() throws IOException {
+
+        assertEquals("", fetch("GET", "/empty"));
+
+    }
+
+    @Test
+    public void emptyStreamIsReturnedAsIs() throws IOException {
+
+        // Body of unknown length that turns out to be empty
+        assertEquals(-1, HttpEncoding.decode(new ByteArrayInputStream(new byte[0]), "gzip").read());
+        assertEquals(-1, HttpEncoding.decode(new ByteArrayInputStream(new byte[0]), "deflate").read());
+
+    }
+
+    /** Read the response the way `HttpRequest` does, decoding it only if it has a body */
+    private String fetch(String method, String path) throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + path).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept-Encoding", HttpEncoding.ACCEPT_ENCODING);
+        try {
+            InputStream is = connection.getInputStream();
+            if (HttpEncoding.hasBody(connection)) {
+                is = HttpEncoding.decode(is, connection.getHeaderField("Content-Encoding"));
+            }
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024];
+            int nRead;
+            while ((nRead = is.read(buffer)) != -1) {
+                data.write(buffer, 0, nRead);
+            }
+            is.close();
+            return data.toString("UTF-8");
+        }
+        finally {
+            connection.disconnect();
+        }
+
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(data);
+        gzip.close();
+        return compressed.toByteArray();
+
+    }
+
+}
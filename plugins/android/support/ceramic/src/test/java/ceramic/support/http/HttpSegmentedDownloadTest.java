@@ -0,0 +1,185 @@
+package ceramic.support.http;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Segmented downloads against a local HTTP server that throttles each connection,
+ * which is how a high-latency mobile link behaves from the client point of view.
+ */
+public class HttpSegmentedDownloadTest {
+
+    private static final int FILE_SIZE = 4 * 1024 * 1024;
+
+    /** Bytes per second allowed on a single connection */
+    private static final int CONNECTION_RATE = 8 * 1024 * 1024;
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+    private byte[] mData;
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    @Before
+    public void setUp() throws IOException {
+
+        mData = new byte[FILE_SIZE];
+        new Random(42).nextBytes(mData);
+
+        mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        mServer.createContext("/file", new FileHandler(true));
+        mServer.createContext("/norange", new FileHandler(false));
+        mServer.setExecutor(Executors.newCachedThreadPool());
+        mServer.start();
+
+        mExecutor = Executors.newCachedThreadPool();
+
+    }
+
+    @After
+    public void tearDown() {
+
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+
+    }
+
+    @Test
+    public void segmentedDownloadMatchesSource() throws IOException {
+
+        File file = File.createTempFile("segmented", ".tmpdl");
+        try {
+            HttpSegmentedDownload download = new HttpSegmentedDownload(url("/file"), null, 10000, mExecutor);
+            assertTrue(download.probe(4, 64 * 1024));
+            assertEquals(FILE_SIZE, download.getContentLength());
+
+            download.download(file, 4);
+            assertTrue(Arrays.equals(mData, Files.readAllBytes(file.toPath())));
+        }
+        finally {
+            file.delete();
+        }
+
+    }
+
+    @Test
+    public void probeFailsWithoutRangeSupport() throws IOException {
+
+        HttpSegmentedDownload download = new HttpSegmentedDownload(url("/norange"), null, 10000, mExecutor);
+        assertFalse(download.probe(4, 64 * 1024));
+
+        // The full response must not be read, the regular download would transfer it a second time
+        assertTrue("Probe read " + mBytesSent.get() + " bytes", mBytesSent.get() < FILE_SIZE / 2);
+
+    }
+
+    @Test
+    public void probeFailsForSmallFiles() throws IOException {
+
+        HttpSegmentedDownload download = new HttpSegmentedDownload(url("/file"), null, 10000, mExecutor);
+        assertFalse(download.probe(4, FILE_SIZE));
+
+    }
+
+    @Test
+    public void benchmarkSegmentedVersusSingleConnection() throws IOException {
+
+        long single = timeDownload(1);
+        long segmented = timeDownload(4);
+
+        // Each connection is throttled, so 4 segments should take about a quarter of the time
+        assertTrue("Single connection: " + single + "ms, 4 segments: " + segmented + "ms", segmented < single * 3 / 4);
+
+    }
+
+    private long timeDownload(int segments) throws IOException {
+
+        File file = File.createTempFile("segmented", ".tmpdl");
+        try {
+            long start = System.nanoTime();
+            HttpSegmentedDownload download = new HttpSegmentedDownload(url("/file"), null, 10000, mExecutor);
+            assertTrue(download.probe(1, 0));
+            download.download(file, segments);
+            long elapsed = (System.nanoTime() - start) / 1000000;
+            assertEquals(FILE_SIZE, file.length());
+            return elapsed;
+        }
+        finally {
+            file.delete();
+        }
+
+    }
+
+    private URL url(String path) throws IOException {
+
+        return new URL("http://127.0.0.1:" + mServer.getAddress().getPort() + path);
+
+    }
+
+    private class FileHandler implements HttpHandler {
+
+        private final boolean mAcceptRanges;
+
+        FileHandler(boolean acceptRanges) {
+            mAcceptRanges = acceptRanges;
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+
+            int start = 0;
+            int end = mData.length - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+
+            exchange.getResponseHeaders().add("ETag", "\"test\"");
+            if (mAcceptRanges && range != null && range.startsWith("bytes=")) {
+                String[] parts = range.substring(6).split("-");
+                start = Integer.parseInt(parts[0]);
+                if (parts.length > 1 && parts[1].length() > 0) {
+                    end = Math.min(end, Integer.parseInt(parts[1]));
+                }
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + mData.length);
+                exchange.sendResponseHeaders(206, end - start + 1);
+            }
+            else {
+                exchange.sendResponseHeaders(200, mData.length);
+            }
+
+            OutputStream os = exchange.getResponseBody();
+            int chunk = 16384;
+            long chunkDelay = 1000L * chunk / CONNECTION_RATE;
+            for (int i = start; i <= end; i += chunk) {
+                os.write(mData, i, Math.min(chunk, end - i + 1));
+                mBytesSent.addAndGet(Math.min(chunk, end - i + 1));
+                try {
+                    Thread.sleep(chunkDelay);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            os.close();
+
+        }
+
+    }
+
+}
@@ -0,0 +1,114 @@
+package ceramic.support.http;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bulk text decoding, compared to the line by line reading it replaces.
+ */
+public class HttpTextTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void charsetFromContentType() {
+
+        assertEquals(UTF8, HttpText.charsetOf(null));
+        assertEquals(UTF8, HttpText.charsetOf("application/json"));
+        assertEquals(Charset.forName("ISO-8859-1"), HttpText.charsetOf("text/plain; charset=ISO-8859-1"));
+        assertEquals(Charset.forName("UTF-16LE"), HttpText.charsetOf("text/plain;charset=\"utf-16le\""));
+        assertEquals(UTF8, HttpText.charsetOf("text/plain; charset=unknown-charset"));
+
+    }
+
+    @Test
+    public void decodeIsByteExact() throws IOException {
+
+        String text = "{\"a\": \"\u00e9\u20ac\ud83d\ude00\"}\r\nline\rlast";
+        byte[] bytes = text.getBytes(UTF8);
+
+        assertEquals(text, HttpText.decode(new ByteArrayInputStream(bytes), bytes.length, UTF8));
+        assertEquals(text, HttpText.decode(new ByteArrayInputStream(bytes), -1, UTF8));
+
+        // Wrong content length must not truncate or break decoding
+        assertEquals(text, HttpText.decode(new ByteArrayInputStream(bytes), 3, UTF8));
+        assertEquals(text, HttpText.decode(new ByteArrayInputStream(bytes), bytes.length * 4, UTF8));
+
+    }
+
+    @Test
+    public void decodeDeclaredCharset() throws IOException {
+
+        Charset latin1 = Charset.forName("ISO-8859-1");
+        String text = "caf\u00e9";
+        byte[] bytes = text.getBytes(latin1);
+
+        assertEquals(text, HttpText.decode(new ByteArrayInputStream(bytes), bytes.length, latin1));
+
+    }
+
+    /** Timings are too close and too noisy on a shared machine to be asserted: run it manually to compare them */
+    @Ignore("Benchmark")
+    @Test
+    public void benchmarkBulkDecodingVersusReadLine() throws IOException {
+
+        StringBuilder json = new StringBuilder();
+        json.append("[\n");
+        for (int i = 0; i < 60000; i++) {
+            json.append("  {\"id\": ").append(i).append(", \"name\": \"item-").append(i).append("-\u00e9\u00e8\", \"tags\": [\"a\", \"b\"]},\n");
+        }
+        json.append("  {}\n]\n");
+        byte[] bytes = json.toString().getBytes(UTF8);
+
+        // Warm up
+        for (int i = 0; i < 3; i++) {
+            readLines(new ByteArrayInputStream(bytes));
+            HttpText.decode(new ByteArrayInputStream(bytes), bytes.length, UTF8);
+        }
+
+        int iterations = 10;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            readLines(new ByteArrayInputStream(bytes));
+        }
+        long readLineTime = (System.nanoTime() - start) / iterations / 1000;
+
+        start = System.nanoTime();
+        String decoded = null;
+        for (int i = 0; i < iterations; i++) {
+            decoded = HttpText.decode(new ByteArrayInputStream(bytes), bytes.length, UTF8);
+        }
+        long bulkTime = (System.nanoTime() - start) / iterations / 1000;
+
+        assertEquals(json.toString(), decoded);
+
+        System.out.println("Decoding " + (bytes.length / 1024) + "KB: readLine " + readLineTime + "us, bulk " + bulkTime + "us");
+
+    }
+
+    /** Previous implementation, kept here as reference */
+    private static String readLines(InputStream is) throws IOException {
+
+        BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        String line;
+        StringBuilder responseOutput = new StringBuilder();
+        while ((line = br.readLine()) != null) {
+            responseOutput.append(line);
+            responseOutput.append('\n');
+        }
+        br.close();
+        return responseOutput.toString();
+
+    }
+
+}
@@ -0,0 +1,345 @@
+package ceramic.support.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * WebSocket client against a local echo server. Text and binary messages are sent back as is,
+ * `burst:N` makes the server send N messages with a single write, and pings are answered
+ * unless the connection was opened on the `/silent` path.
+ */
+public class HttpWebSocketTest {
+
+    private ServerSocket mServer;
+    private final AtomicInteger mPings = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = mServer.accept();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }).start();
+                    }
+                } catch (IOException e) {
+                    // Server stopped
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        mServer.close();
+
+    }
+
+    @Test
+    public void echoesTextAndBinaryMessages() throws Exception {
+
+        byte[] medium = new byte[200];
+        byte[] large = new byte[70000];
+        new Random(42).nextBytes(medium);
+        new Random(43).nextBytes(large);
+
+        Recorder recorder = new Recorder(4);
+        HttpWebSocket webSocket = new HttpWebSocket(url("/"), null, null, recorder).connect();
+        assertTrue(webSocket.sendText("hello"));
+        assertTrue(webSocket.sendText("héllo ✓"));
+        assertTrue(webSocket.sendBinary(medium));
+        assertTrue(webSocket.sendBinary(large));
+
+        assertTrue(recorder.received.await(5, TimeUnit.SECONDS));
+        assertTrue(recorder.opened);
+        assertEquals("hello", recorder.messages.get(0).text);
+        assertEquals("héllo ✓", recorder.messages.get(1).text);
+        assertTrue(Arrays.equals(medium, recorder.messages.get(2).data));
+        assertTrue(Arrays.equals(large, recorder.messages.get(3).data));
+
+        webSocket.close(HttpWebSocket.CLOSE_NORMAL, "done");
+        assertTrue(recorder.closed.await(5, TimeUnit.SECONDS));
+
+    }
+
+    @Test
+    public void deliversMessagesReceivedTogetherInBatches() throws Exception {
+
+        Recorder recorder = new Recorder(100);
+        HttpWebSocket webSocket = new HttpWebSocket(url("/"), null, null, recorder).connect();
+        webSocket.sendText("burst:100");
+
+        assertTrue(recorder.received.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals("m" + i, recorder.messages.get(i).text);
+        }
+        assertTrue("Expected batches, got " + recorder.batches + " calls", recorder.batches.get() < 100);
+
+        webSocket.close(HttpWebSocket.CLOSE_NORMAL, null);
+
+    }
+
+    @Test
+    public void rejectsMessagesWhenSendQueueIsFull() throws Exception {
+
+        Recorder recorder = new Recorder(1);
+        HttpWebSocket webSocket = new HttpWebSocket(url("/"), null, null, recorder).setMaxQueuedBytes(1000);
+
+        // Not connected yet, so messages stay queued
+        assertTrue(webSocket.sendBinary(new byte[600]));
+        assertFalse(webSocket.sendBinary(new byte[600]));
+        assertEquals(600, webSocket.getQueuedBytes());
+
+        webSocket.connect();
+        assertTrue(recorder.received.await(5, TimeUnit.SECONDS));
+        assertEquals(600, recorder.messages.get(0).data.length);
+        assertEquals(0, webSocket.getQueuedBytes());
+
+        webSocket.close(HttpWebSocket.CLOSE_NORMAL, null);
+
+    }
+
+    @Test
+    public void closesWithClosingHandshake() throws Exception {
+
+        Recorder recorder = new Recorder(0);
+        HttpWebSocket webSocket = new HttpWebSocket(url("/"), null, null, recorder).connect();
+        webSocket.sendText("last");
+        webSocket.close(HttpWebSocket.CLOSE_NORMAL, "bye");
+        assertFalse(webSocket.sendText("too late"));
+
+        assertTrue(recorder.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(HttpWebSocket.CLOSE_NORMAL, recorder.closeCode);
+        assertEquals("bye", recorder.closeReason);
+        assertNull(recorder.closeError);
+
+    }
+
+    @Test
+    public void keepsConnectionAliveWithPings() throws Exception {
+
+        Recorder recorder = new Recorder(0);
+        HttpWebSocket webSocket = new HttpWebSocket(url("/"), null, null, recorder).setPingInterval(50).connect();
+
+        Thread.sleep(400);
+        assertTrue(mPings.get() >= 2);
+        assertEquals(1, recorder.closed.getCount());
+
+        webSocket.close(HttpWebSocket.CLOSE_NORMAL, null);
+
+    }
+
+    @Test
+    public void failsWhenPingsAreNotAnswered() throws Exception {
+
+        Recorder recorder = new Recorder(0);
+        new HttpWebSocket(url("/silent"), null, null, recorder).setPingInterval(50).connect();
+
+        assertTrue(recorder.closed.await(5, TimeUnit.SECONDS));
+        assertEquals(HttpWebSocket.CLOSE_ABNORMAL, recorder.closeCode);
+        assertEquals("Ping timeout", recorder.closeError);
+
+    }
+
+    @Test
+    public void failsWhenServerRejectsHandshake() throws Exception {
+
+        Recorder recorder = new Recorder(0);
+        new HttpWebSocket(url("/reject"), null, null, recorder).connect();
+
+        assertTrue(recorder.closed.await(5, TimeUnit.SECONDS));
+        assertFalse(recorder.opened);
+        assertEquals(HttpWebSocket.CLOSE_ABNORMAL, recorder.closeCode);
+        assertNotNull(recorder.closeError);
+
+    }
+
+    private String url(String path) {
+
+        return "ws://127.0.0.1:" + mServer.getLocalPort() + path;
+
+    }
+
+    private static class Recorder implements HttpWebSocket.Listener {
+
+        final List<HttpWebSocket.Message> messages = new ArrayList<>();
+        final AtomicInteger batches = new AtomicInteger();
+        final CountDownLatch received;
+        final CountDownLatch closed = new CountDownLatch(1);
+        volatile boolean opened = false;
+        volatile int closeCode;
+        volatile String closeReason;
+        volatile String closeError;
+
+        Recorder(int expectedMessages) {
+            received = new CountDownLatch(expectedMessages);
+        }
+
+        @Override
+        public void onOpen(HttpWebSocket webSocket, List<String> headers) {
+            opened = true;
+        }
+
+        @Override
+        public void onMessages(HttpWebSocket webSocket, List<HttpWebSocket.Message> batch) {
+            batches.incrementAndGet();
+            synchronized (messages) {
+                messages.addAll(batch);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                received.countDown();
+            }
+        }
+
+        @Override
+        public void onClose(HttpWebSocket webSocket, int code, String reason, String error) {
+            closeCode = code;
+            closeReason = reason;
+            closeError = error;
+            closed.countDown();
+        }
+
+    }
+
+/// Echo server
+
+    private void serve(Socket socket) {
+
+        try {
+            DataInputStream input = new DataInputStream(socket.getInputStream());
+            OutputStream output = socket.getOutputStream();
+
+            String requestLine = readLine(input);
+            String key = null;
+            String line;
+            while ((line = readLine(input)).length() > 0) {
+                if (line.toLowerCase().startsWith("sec-websocket-key:")) {
+                    key = line.substring(line.indexOf(':') + 1).trim();
+                }
+            }
+            String path = requestLine.split(" ")[1];
+            if (path.equals("/reject")) {
+                output.write("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\n\r\n".getBytes("UTF-8"));
+                socket.close();
+                return;
+            }
+            boolean silent = path.equals("/silent");
+
+            String accept = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-1")
+                .digest((key + "258EAFA5-E914-47DA-95CA-C5AB0DC85B11").getBytes("UTF-8")));
+            output.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept + "\r\n\r\n").getBytes("UTF-8"));
+
+            while (true) {
+                int b0 = input.readUnsignedByte();
+                int b1 = input.readUnsignedByte();
+                int opcode = b0 & 0x0F;
+                assertTrue("Client frames must be masked", (b1 & 0x80) != 0);
+                long length = b1 & 0x7F;
+                if (length == 126) length = input.readUnsignedShort();
+                else if (length == 127) length = input.readLong();
+                byte[] mask = new byte[4];
+                input.readFully(mask);
+                byte[] payload = new byte[(int) length];
+                input.readFully(payload);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+
+                if (opcode == HttpWebSocket.OPCODE_PING) {
+                    mPings.incrementAndGet();
+                    if (!silent) output.write(frame(HttpWebSocket.OPCODE_PONG, payload));
+                }
+                else if (opcode == HttpWebSocket.OPCODE_CLOSE) {
+                    output.write(frame(HttpWebSocket.OPCODE_CLOSE, payload));
+                    socket.close();
+                    return;
+                }
+                else if (opcode == HttpWebSocket.OPCODE_TEXT && new String(payload, "UTF-8").startsWith("burst:")) {
+                    int count = Integer.parseInt(new String(payload, "UTF-8").substring(6));
+                    ByteArrayOutputStream burst = new ByteArrayOutputStream();
+                    for (int i = 0; i < count; i++) {
+                        burst.write(frame(HttpWebSocket.OPCODE_TEXT, ("m" + i).getBytes("UTF-8")));
+                    }
+                    output.write(burst.toByteArray());
+                }
+                else {
+                    output.write(frame(opcode, payload));
+                }
+            }
+        } catch (Exception e) {
+            // Connection closed
+        }
+
+    }
+
+    /** Server frames are not masked */
+    private static byte[] frame(int opcode, byte[] payload) throws IOException {
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        frame.write(0x80 | opcode);
+        if (payload.length > 0xFFFF) {
+            frame.write(127);
+            for (int i = 7; i >= 0; i--) {
+                frame.write((int) ((long) payload.length >>> (8 * i)) & 0xFF);
+            }
+        }
+        else if (payload.length > 125) {
+            frame.write(126);
+            frame.write(payload.length >>> 8);
+            frame.write(payload.length & 0xFF);
+        }
+        else {
+            frame.write(payload.length);
+        }
+        frame.write(payload);
+        return frame.toByteArray();
+
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != '\n') {
+            if (b == -1) throw new IOException("Unexpected end of stream");
+            if (b != '\r') line.write(b);
+        }
+        return line.toString("UTF-8");
+
+    }
+
+}
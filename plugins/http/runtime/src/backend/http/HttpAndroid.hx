@@ -6,6 +6,8 @@ import android.Http as AndroidHttp;
 import ceramic.Shortcuts.*;
 import haxe.crypto.Base64;
 import haxe.io.Bytes;
+import sys.FileSystem;
+import sys.io.File;
 
 class HttpAndroid {
 
@@ -26,7 +28,11 @@ class HttpAndroid {
             requestOptions.timeout = options.timeout;
         }
 
-        AndroidHttp.sendHttpRequest(requestOptions, function(rawResponse) {
+        // Let Java write binary responses to a file that we read directly,
+        // instead of receiving them as a base64 string through JSON
+        requestOptions.binaryToFile = true;
+
+        AndroidHttp.sendHttpRequest(requestOptions, null, function(rawResponse) {
             var useContent = rawResponse.status >= 200 && rawResponse.status < 300;
             var headers:Array<String> = [];
             if (rawResponse.headers != null) {
@@ -35,15 +41,44 @@ class HttpAndroid {
                 headers = rawHeaders;
             }
 
+            var content:String = rawResponse.content;
+            if (rawResponse.contentPath != null) {
+                // Response was too large to be kept in memory on Java side
+                var contentPath:String = rawResponse.contentPath;
+                try {
+                    content = File.getContent(contentPath);
+                }
+                catch (e:Dynamic) {
+                    log.error('Failed to read content at path $contentPath: $e');
+                }
+                try {
+                    FileSystem.deleteFile(contentPath);
+                }
+                catch (e:Dynamic) {}
+            }
+
             var binaryContent:Bytes = null;
-            if (rawResponse.binaryContent != null) {
+            if (rawResponse.binaryContentPath != null) {
+                var binaryContentPath:String = rawResponse.binaryContentPath;
+                try {
+                    binaryContent = File.getBytes(binaryContentPath);
+                }
+                catch (e:Dynamic) {
+                    log.error('Failed to read binary content at path $binaryContentPath: $e');
+                }
+                try {
+                    FileSystem.deleteFile(binaryContentPath);
+                }
+                catch (e:Dynamic) {}
+            }
+            else if (rawResponse.binaryContent != null) {
                 var binaryContentRaw:String = rawResponse.binaryContent;
                 binaryContent = Base64.decode(binaryContentRaw);
             }
 
             done({
                 status: rawResponse.status,
-                content: useContent ? rawResponse.content : null,
+                content: useContent ? content : null,
                 binaryContent: binaryContent,
                 headers: headers,
                 error: rawResponse.error
@@ -54,7 +89,8 @@ class HttpAndroid {
 
     public static function download(url:String, targetPath:String, done:String->Void):Void {
 
-        AndroidHttp.download({url: url}, targetPath, function(fullPath) {
+        AndroidHttp.download({url: url}, targetPath, null, function(result) {
+            var fullPath:String = result.path;
             if (fullPath == null) {
                 log.error('Failed to download $url at path $targetPath');
             }